@@ -2,21 +2,92 @@ package tk.programmerjake.peg_parser_generator.eclipse.editors;
 
 import org.eclipse.jface.text.IDocument;
 import org.eclipse.jface.text.ITextDoubleClickStrategy;
+import org.eclipse.jface.text.TextAttribute;
+import org.eclipse.jface.text.contentassist.ContentAssistant;
+import org.eclipse.jface.text.contentassist.IContentAssistant;
+import org.eclipse.jface.text.hyperlink.IHyperlinkDetector;
+import org.eclipse.jface.text.hyperlink.URLHyperlinkDetector;
 import org.eclipse.jface.text.presentation.IPresentationReconciler;
 import org.eclipse.jface.text.presentation.PresentationReconciler;
+import org.eclipse.jface.text.reconciler.IReconciler;
+import org.eclipse.jface.text.reconciler.MonoReconciler;
+import org.eclipse.jface.text.rules.DefaultDamagerRepairer;
+import org.eclipse.jface.text.rules.IToken;
+import org.eclipse.jface.text.rules.ITokenScanner;
+import org.eclipse.jface.text.rules.Token;
 import org.eclipse.jface.text.source.ISourceViewer;
 import org.eclipse.jface.text.source.SourceViewerConfiguration;
 
 public class PEGConfiguration extends SourceViewerConfiguration {
 	public PEGConfiguration(ColorManager colorManager) {
 		this.colorManager = colorManager;
+		parser = new PEGParser(colorManager);
+		// the reconciler parses the grammar
+		parser.setSemanticParseDeferred(true);
+		contentAssistProcessor = new PEGContentAssistProcessor(parser);
+		symbolTable = new PEGSymbolTable(parser);
 	}
 
 	private final ColorManager colorManager;
+	private final PEGParser parser;
+	private final PEGContentAssistProcessor contentAssistProcessor;
+	private final PEGSymbolTable symbolTable;
+
+	PEGParser getParser() {
+		return parser;
+	}
+
+	PEGSymbolTable getSymbolTable() {
+		return symbolTable;
+	}
+
+	/**
+	 * scans a whole range as one token, for partitions that are all one style
+	 */
+	private static final class SingleTokenScanner implements ITokenScanner {
+		private final IToken token;
+		private int offset;
+		private int length;
+		private boolean returnedToken;
+
+		public SingleTokenScanner(TextAttribute textAttribute) {
+			token = new Token(textAttribute);
+		}
+
+		@Override
+		public void setRange(IDocument document, int offset, int length) {
+			this.offset = offset;
+			this.length = length;
+			returnedToken = false;
+		}
+
+		@Override
+		public IToken nextToken() {
+			if (returnedToken || length == 0)
+				return Token.EOF;
+			returnedToken = true;
+			return token;
+		}
+
+		@Override
+		public int getTokenOffset() {
+			return offset;
+		}
+
+		@Override
+		public int getTokenLength() {
+			return length;
+		}
+	}
+
+	@Override
+	public String getConfiguredDocumentPartitioning(ISourceViewer sourceViewer) {
+		return PEGPartitions.PEG_PARTITIONING;
+	}
 
 	@Override
 	public String[] getConfiguredContentTypes(ISourceViewer sourceViewer) {
-		return new String[] { IDocument.DEFAULT_CONTENT_TYPE };
+		return PEGPartitions.getContentTypes();
 	}
 
 	@Override
@@ -27,9 +98,43 @@ public class PEGConfiguration extends SourceViewerConfiguration {
 	@Override
 	public IPresentationReconciler getPresentationReconciler(ISourceViewer sourceViewer) {
 		PresentationReconciler reconciler = new PresentationReconciler();
-		PEGDamagerRepairer damagerRepairer = new PEGDamagerRepairer(new PEGParser(colorManager));
+		reconciler.setDocumentPartitioning(getConfiguredDocumentPartitioning(sourceViewer));
+		PEGDamagerRepairer damagerRepairer = new PEGDamagerRepairer(parser, sourceViewer);
 		reconciler.setDamager(damagerRepairer, IDocument.DEFAULT_CONTENT_TYPE);
 		reconciler.setRepairer(damagerRepairer, IDocument.DEFAULT_CONTENT_TYPE);
+		reconciler.setDamager(damagerRepairer, PEGPartitions.CODE_SNIPPET);
+		reconciler.setRepairer(damagerRepairer, PEGPartitions.CODE_SNIPPET);
+		PEGSyntaxHighlightingConstants syntaxHighlightingConstants = parser.getSyntaxHighlightingConstants();
+		DefaultDamagerRepairer blockCommentDamagerRepairer = new DefaultDamagerRepairer(
+				new SingleTokenScanner(syntaxHighlightingConstants.blockCommentTextAttribute));
+		reconciler.setDamager(blockCommentDamagerRepairer, PEGPartitions.BLOCK_COMMENT);
+		reconciler.setRepairer(blockCommentDamagerRepairer, PEGPartitions.BLOCK_COMMENT);
+		DefaultDamagerRepairer stringDamagerRepairer = new DefaultDamagerRepairer(
+				new SingleTokenScanner(syntaxHighlightingConstants.stringTextAttribute));
+		reconciler.setDamager(stringDamagerRepairer, PEGPartitions.STRING);
+		reconciler.setRepairer(stringDamagerRepairer, PEGPartitions.STRING);
+		return reconciler;
+	}
+
+	@Override
+	public IContentAssistant getContentAssistant(ISourceViewer sourceViewer) {
+		ContentAssistant assistant = new ContentAssistant();
+		assistant.setDocumentPartitioning(getConfiguredDocumentPartitioning(sourceViewer));
+		assistant.setContentAssistProcessor(contentAssistProcessor, IDocument.DEFAULT_CONTENT_TYPE);
+		assistant.enableAutoInsert(true);
+		return assistant;
+	}
+
+	@Override
+	public IHyperlinkDetector[] getHyperlinkDetectors(ISourceViewer sourceViewer) {
+		return new IHyperlinkDetector[] { new PEGHyperlinkDetector(symbolTable), new URLHyperlinkDetector() };
+	}
+
+	@Override
+	public IReconciler getReconciler(ISourceViewer sourceViewer) {
+		PEGReconcilingStrategy strategy = new PEGReconcilingStrategy(parser, sourceViewer);
+		MonoReconciler reconciler = new MonoReconciler(strategy, false);
+		strategy.setReconciler(reconciler);
 		return reconciler;
 	}
 
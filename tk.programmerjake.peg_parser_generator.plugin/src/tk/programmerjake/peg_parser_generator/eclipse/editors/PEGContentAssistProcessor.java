@@ -0,0 +1,278 @@
+package tk.programmerjake.peg_parser_generator.eclipse.editors;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.ITextViewer;
+import org.eclipse.jface.text.contentassist.CompletionProposal;
+import org.eclipse.jface.text.contentassist.ICompletionProposal;
+import org.eclipse.jface.text.contentassist.IContentAssistProcessor;
+import org.eclipse.jface.text.contentassist.IContextInformation;
+import org.eclipse.jface.text.contentassist.IContextInformationValidator;
+
+/**
+ * completes rule names, typedef names and template parameters. The names the
+ * top-level items define are kept in sorted maps, and when the grammar is
+ * parsed again only the names of the items that aren't the same nodes as
+ * before are taken out and put back, so completing is a lookup of the names
+ * after the prefix instead of a pass over the tokens. Template parameters are
+ * only in scope in their own rule, so they come from the rule being edited.
+ */
+final class PEGContentAssistProcessor implements IContentAssistProcessor, PEGParser.SyntaxTreeListener {
+
+	private static final class Entry {
+		public final PEGParser.SyntaxNode item;
+		/**
+		 * the rule or type the item defines, or null if it doesn't define one
+		 */
+		public final String name;
+
+		public Entry(PEGParser.SyntaxNode item, String name) {
+			this.item = item;
+			this.name = name;
+		}
+	}
+
+	/**
+	 * the kinds of name that can go where a completion is asked for
+	 */
+	private enum NameKind {
+		None, Rule, Type, TemplateParameter
+	}
+
+	private static final ICompletionProposal[] NO_PROPOSALS = new ICompletionProposal[0];
+	/**
+	 * the most names to propose; a short prefix can match every rule of a
+	 * large grammar, and the first names in order are all that fit in the
+	 * list anyway
+	 */
+	public static final int MAX_PROPOSALS = 1000;
+
+	/**
+	 * an entry for each item of tree, in order
+	 */
+	private final List<Entry> entries = new ArrayList<Entry>();
+	/**
+	 * the number of rules that define each rule name
+	 */
+	private final TreeMap<String, Integer> ruleNames = new TreeMap<String, Integer>();
+	/**
+	 * the number of typedefs that define each type name
+	 */
+	private final TreeMap<String, Integer> typeNames = new TreeMap<String, Integer>();
+	private PEGParser.SyntaxTree tree;
+	private PEGParser.TokenBuffer tokens;
+
+	public PEGContentAssistProcessor(PEGParser parser) {
+		parser.addSyntaxTreeListener(this);
+		PEGParser.SyntaxTree tree = parser.getSyntaxTree();
+		if (tree != null)
+			syntaxTreeChanged(tree, parser.getSyntaxTreeTokens());
+	}
+
+	private TreeMap<String, Integer> getNames(PEGParser.SyntaxNode.Kind kind) {
+		switch (kind) {
+		case Rule:
+			return ruleNames;
+		case Typedef:
+			return typeNames;
+		default:
+			return null;
+		}
+	}
+
+	private static Entry createEntry(PEGParser.SyntaxTree tree, PEGParser.TokenBuffer tokens, int index) {
+		PEGParser.SyntaxNode item = tree.getItem(index);
+		int name;
+		switch (item.kind) {
+		case Rule:
+			name = item.findStyledToken(PEGSyntaxHighlightingConstants.RULE_NAME_ID);
+			break;
+		case Typedef:
+			name = item.findStyledToken(PEGSyntaxHighlightingConstants.TYPE_NAME_ID);
+			break;
+		default:
+			name = -1;
+			break;
+		}
+		return new Entry(item, name < 0 ? null : tokens.getValue(tree.getItemStart(index) + name));
+	}
+
+	@Override
+	public void syntaxTreeChanged(PEGParser.SyntaxTree tree, PEGParser.TokenBuffer tokens) {
+		int oldCount = entries.size();
+		int newCount = tree.getItemCount();
+		int first = 0;
+		while (first < oldCount && first < newCount && entries.get(first).item == tree.getItem(first))
+			first++;
+		int oldEnd = oldCount;
+		int newEnd = newCount;
+		while (oldEnd > first && newEnd > first && entries.get(oldEnd - 1).item == tree.getItem(newEnd - 1)) {
+			oldEnd--;
+			newEnd--;
+		}
+		this.tree = tree;
+		this.tokens = tokens;
+		List<Entry> oldEntries = entries.subList(first, oldEnd);
+		for (Entry entry : oldEntries) {
+			if (entry.name == null)
+				continue;
+			TreeMap<String, Integer> names = getNames(entry.item.kind);
+			int count = names.get(entry.name);
+			if (count == 1)
+				names.remove(entry.name);
+			else
+				names.put(entry.name, count - 1);
+		}
+		oldEntries.clear();
+		List<Entry> newEntries = new ArrayList<Entry>(newEnd - first);
+		for (int i = first; i < newEnd; i++) {
+			Entry entry = createEntry(tree, tokens, i);
+			newEntries.add(entry);
+			if (entry.name == null)
+				continue;
+			TreeMap<String, Integer> names = getNames(entry.item.kind);
+			Integer count = names.get(entry.name);
+			names.put(entry.name, count == null ? 1 : count + 1);
+		}
+		entries.addAll(first, newEntries);
+	}
+
+	/**
+	 * @return the kind of name that goes at offset, going by the last token
+	 *         before it that isn't whitespace or a comment
+	 */
+	private NameKind getNameKind(int offset, int[] itemIndex) {
+		int previous = tokens.findTokenEndingAfter(offset) - 1;
+		while (previous >= 0) {
+			PEGParser.TokenType type = tokens.getType(previous);
+			if (type != PEGParser.TokenType.Whitespace && type != PEGParser.TokenType.LineComment
+					&& type != PEGParser.TokenType.BlockComment)
+				break;
+			previous--;
+		}
+		itemIndex[0] = previous < 0 ? -1 : tree.lowerBound(0, tree.getItemCount(), previous + 1) - 1;
+		if (itemIndex[0] < 0 || tokens.getType(previous) == PEGParser.TokenType.Semicolon)
+			return NameKind.Rule; // between items
+		PEGParser.SyntaxNode item = tree.getItem(itemIndex[0]);
+		if (item.kind != PEGParser.SyntaxNode.Kind.Rule)
+			return NameKind.None;
+		PEGParser.SyntaxNode expression = item.findChild(PEGParser.SyntaxNode.Kind.Expression);
+		boolean inHeader = expression == null || previous - tree.getItemStart(itemIndex[0]) < expression.start;
+		switch (tokens.getType(previous)) {
+		case Equal:
+			return inHeader ? NameKind.Rule : NameKind.None;
+		case Colon:
+			// the type of the rule or of a template parameter, or else a
+			// result variable
+			return inHeader ? NameKind.Type : NameKind.None;
+		case LAngle:
+		case Comma:
+			return inHeader ? NameKind.None : NameKind.TemplateParameter;
+		case CodeSnippetStart:
+		case CodeSnippetSubstitution:
+		case CodeSnippetLineComment:
+		case CodeSnippetBlockComment:
+		case CodeSnippetKeyword:
+		case CodeSnippetIdentifier:
+		case CodeSnippetString:
+		case CodeSnippetChar:
+		case CodeSnippetHeaderName:
+		case CodeSnippetNumber:
+		case CodeSnippetPunctuator:
+		case CodeSnippetUnknown:
+			return NameKind.None;
+		default:
+			return inHeader ? NameKind.None : NameKind.Rule;
+		}
+	}
+
+	private static void addNamesWithPrefix(TreeMap<String, Integer> names, String prefix, List<String> matches) {
+		for (String name : names.tailMap(prefix).keySet()) {
+			if (!name.startsWith(prefix) || matches.size() >= MAX_PROPOSALS)
+				break;
+			matches.add(name);
+		}
+	}
+
+	private void addTemplateParametersWithPrefix(int itemIndex, String prefix, List<String> matches) {
+		PEGParser.SyntaxNode parameters = tree.getItem(itemIndex)
+				.findChild(PEGParser.SyntaxNode.Kind.TemplateParameters);
+		if (parameters == null)
+			return;
+		for (int i = 0; i < parameters.getStyledTokenCount(); i++) {
+			if (parameters.getTokenStyle(i) != PEGSyntaxHighlightingConstants.TEMPLATE_VARIABLE_ID)
+				continue;
+			String name = tokens.getValue(tree.getItemStart(itemIndex) + parameters.getStyledToken(i));
+			if (name.startsWith(prefix))
+				matches.add(name);
+		}
+	}
+
+	@Override
+	public ICompletionProposal[] computeCompletionProposals(ITextViewer viewer, int offset) {
+		IDocument document = viewer.getDocument();
+		if (tree == null || document == null)
+			return NO_PROPOSALS;
+		int prefixStart = offset;
+		String prefix;
+		try {
+			while (prefixStart > 0 && PEGParser.isIdentifierPart(document.getChar(prefixStart - 1)))
+				prefixStart--;
+			prefix = document.get(prefixStart, offset - prefixStart);
+		} catch (BadLocationException e) {
+			return NO_PROPOSALS;
+		}
+		List<String> matches = new ArrayList<String>();
+		int[] itemIndex = new int[1];
+		// the tokens may be a little behind the document, but only the ones
+		// before the prefix are looked at
+		switch (getNameKind(prefixStart, itemIndex)) {
+		case Rule:
+			addNamesWithPrefix(ruleNames, prefix, matches);
+			break;
+		case Type:
+			addNamesWithPrefix(typeNames, prefix, matches);
+			break;
+		case TemplateParameter:
+			addTemplateParametersWithPrefix(itemIndex[0], prefix, matches);
+			break;
+		case None:
+			break;
+		}
+		ICompletionProposal[] proposals = new ICompletionProposal[matches.size()];
+		for (int i = 0; i < proposals.length; i++) {
+			String name = matches.get(i);
+			proposals[i] = new CompletionProposal(name, prefixStart, offset - prefixStart, name.length());
+		}
+		return proposals;
+	}
+
+	@Override
+	public IContextInformation[] computeContextInformation(ITextViewer viewer, int offset) {
+		return null;
+	}
+
+	@Override
+	public char[] getCompletionProposalAutoActivationCharacters() {
+		return null;
+	}
+
+	@Override
+	public char[] getContextInformationAutoActivationCharacters() {
+		return null;
+	}
+
+	@Override
+	public String getErrorMessage() {
+		return null;
+	}
+
+	@Override
+	public IContextInformationValidator getContextInformationValidator() {
+		return null;
+	}
+}
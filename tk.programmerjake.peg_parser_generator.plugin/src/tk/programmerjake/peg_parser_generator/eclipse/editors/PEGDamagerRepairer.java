@@ -1,92 +1,284 @@
 package tk.programmerjake.peg_parser_generator.eclipse.editors;
 
+import java.util.Arrays;
+
 import org.eclipse.core.runtime.Assert;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
 import org.eclipse.jface.text.DocumentEvent;
 import org.eclipse.jface.text.IDocument;
 import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.ITextViewer;
 import org.eclipse.jface.text.ITypedRegion;
+import org.eclipse.jface.text.IViewportListener;
+import org.eclipse.jface.text.Region;
 import org.eclipse.jface.text.TextAttribute;
 import org.eclipse.jface.text.TextPresentation;
 import org.eclipse.jface.text.presentation.IPresentationDamager;
 import org.eclipse.jface.text.presentation.IPresentationRepairer;
 import org.eclipse.jface.text.rules.IToken;
-import org.eclipse.jface.text.rules.ITokenScanner;
-import org.eclipse.jface.text.rules.Token;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.custom.StyleRange;
+import org.eclipse.swt.custom.StyledText;
+import org.eclipse.swt.widgets.Display;
 
 final class PEGDamagerRepairer implements IPresentationDamager, IPresentationRepairer {
 
-	private final ITokenScanner tokenScanner;
+	/**
+	 * documents at least this long are styled around the visible text first,
+	 * while all of the document is parsed in the background
+	 */
+	public static final int DEFAULT_BACKGROUND_PARSING_THRESHOLD = 1 << 20;
+
+	/**
+	 * how much text to style when the viewer can't tell us what's visible yet
+	 */
+	private static final int DEFAULT_VISIBLE_LENGTH = 16 << 10;
+
+	private final PEGParser parser;
+	private final PEGParser.StyleTokenScanner tokenScanner;
+	private final PEGParser.StyleTokenScanner regionTokenScanner;
+	private final ITextViewer viewer;
 	private final TextAttribute defaultTextAttribute = new TextAttribute(null);
+	/**
+	 * the style range for each style id, copied for each run of text
+	 */
+	private final StyleRange[] styleRangeTemplates = new StyleRange[PEGSyntaxHighlightingConstants.STYLE_ID_COUNT];
+	/**
+	 * the first style id with the same text attribute as each style id, so
+	 * runs of equally styled text are merged by comparing ids
+	 */
+	private final int[] runStyleIds = new int[PEGSyntaxHighlightingConstants.STYLE_ID_COUNT];
+	/**
+	 * the style ranges of the presentation being created, reused between
+	 * presentations
+	 */
+	private StyleRange[] runs = new StyleRange[64];
 	private IDocument document;
+	private int backgroundParsingThreshold = DEFAULT_BACKGROUND_PARSING_THRESHOLD;
+	private Job parseJob;
 
 	public PEGDamagerRepairer(PEGParser parser) {
+		this(parser, null);
+	}
+
+	/**
+	 * @param viewer
+	 *            the viewer whose visible text is styled first for large
+	 *            documents, or null to always parse the whole document before
+	 *            styling it
+	 */
+	public PEGDamagerRepairer(PEGParser parser, ITextViewer viewer) {
+		this.parser = parser;
+		this.viewer = viewer;
 		tokenScanner = parser.getTokenScanner();
+		regionTokenScanner = parser.getRegionTokenScanner();
 		Assert.isNotNull(tokenScanner);
+		PEGSyntaxHighlightingConstants constants = parser.getSyntaxHighlightingConstants();
+		TextAttribute[] attributes = new TextAttribute[styleRangeTemplates.length];
+		for (int i = 0; i < styleRangeTemplates.length; i++) {
+			attributes[i] = constants.getTextAttribute(i);
+			if (attributes[i] == null)
+				attributes[i] = defaultTextAttribute;
+			styleRangeTemplates[i] = createStyleRange(attributes[i]);
+			runStyleIds[i] = i;
+			for (int j = 0; j < i; j++) {
+				if (attributes[j].equals(attributes[i])) {
+					runStyleIds[i] = j;
+					break;
+				}
+			}
+		}
+		if (viewer != null) {
+			viewer.addViewportListener(new IViewportListener() {
+
+				@Override
+				public void viewportChanged(int verticalOffset) {
+					if (parseJob != null)
+						styleVisibleText();
+				}
+			});
+		}
+	}
+
+	public int getBackgroundParsingThreshold() {
+		return backgroundParsingThreshold;
+	}
+
+	/**
+	 * @param backgroundParsingThreshold
+	 *            the length at which documents are parsed in the background,
+	 *            or {@link Integer#MAX_VALUE} to always parse them before
+	 *            styling them
+	 */
+	public void setBackgroundParsingThreshold(int backgroundParsingThreshold) {
+		this.backgroundParsingThreshold = backgroundParsingThreshold;
+	}
+
+	private boolean shouldParseInBackground() {
+		return viewer != null && !parser.isParsed(document) && document.getLength() >= backgroundParsingThreshold;
+	}
+
+	/**
+	 * @return the part of [offset, end) that's visible, or null if none of it
+	 *         is
+	 */
+	private IRegion getVisibleRegion(int offset, int end) {
+		int visibleStart = viewer.getTopIndexStartOffset();
+		int visibleEnd = viewer.getBottomIndexEndOffset();
+		if (visibleEnd <= visibleStart)
+			visibleEnd = visibleStart + DEFAULT_VISIBLE_LENGTH;
+		visibleStart = Math.max(visibleStart, offset);
+		visibleEnd = Math.min(visibleEnd, end);
+		if (visibleStart >= visibleEnd)
+			return null;
+		return new Region(visibleStart, visibleEnd - visibleStart);
+	}
+
+	private void styleVisibleText() {
+		IRegion visibleRegion = getVisibleRegion(0, document.getLength());
+		if (visibleRegion == null)
+			return;
+		TextPresentation presentation = new TextPresentation(visibleRegion, 1000);
+		createPresentation(presentation, regionTokenScanner, visibleRegion.getOffset(), visibleRegion.getLength());
+		viewer.changeTextPresentation(presentation, false);
+	}
+
+	/**
+	 * parse the whole document in a background job, then restyle all of it
+	 */
+	private void startBackgroundParse() {
+		if (parseJob != null)
+			return;
+		final PEGParser.Snapshot snapshot = parser.takeSnapshot(document);
+		final Display display = viewer.getTextWidget().getDisplay();
+		parseJob = new Job("Parsing PEG grammar") {
+
+			@Override
+			protected IStatus run(IProgressMonitor monitor) {
+				if (!parser.parseSnapshot(snapshot, monitor))
+					return Status.CANCEL_STATUS;
+				final Job job = this;
+				if (display.isDisposed())
+					return Status.CANCEL_STATUS;
+				display.asyncExec(new Runnable() {
+
+					@Override
+					public void run() {
+						if (parseJob != job)
+							return;
+						parseJob = null;
+						StyledText textWidget = viewer.getTextWidget();
+						if (textWidget == null || textWidget.isDisposed())
+							return;
+						if (parser.useSnapshot(snapshot))
+							viewer.invalidateTextPresentation();
+					}
+				});
+				return Status.OK_STATUS;
+			}
+		};
+		parseJob.setSystem(true);
+		parseJob.setPriority(Job.SHORT);
+		parseJob.schedule();
+	}
+
+	private void cancelBackgroundParse() {
+		if (parseJob != null) {
+			parseJob.cancel();
+			parseJob = null;
+		}
 	}
 
 	@Override
 	public void createPresentation(TextPresentation presentation, ITypedRegion region) {
-		int lastStart = region.getOffset();
-		int length = 0;
-		boolean firstToken = true;
-		IToken lastToken = Token.UNDEFINED;
-		TextAttribute lastAttribute = getTokenTextAttribute(lastToken);
+		if (shouldParseInBackground()) {
+			// only style what's visible until the background parse is done
+			startBackgroundParse();
+			IRegion visibleRegion = getVisibleRegion(region.getOffset(), region.getOffset() + region.getLength());
+			if (visibleRegion != null)
+				createPresentation(presentation, regionTokenScanner, visibleRegion.getOffset(),
+						visibleRegion.getLength());
+			return;
+		}
+		createPresentation(presentation, tokenScanner, region.getOffset(), region.getLength());
+	}
+
+	private void createPresentation(TextPresentation presentation, PEGParser.StyleTokenScanner tokenScanner,
+			int offset, int regionLength) {
+		int runCount = 0;
+		int runStyleId = -1;
+		int runStart = offset;
+		int runLength = 0;
 
-		tokenScanner.setRange(document, lastStart, region.getLength());
+		tokenScanner.setRange(document, offset, regionLength);
 
 		while (true) {
 			IToken token = tokenScanner.nextToken();
 			if (token.isEOF())
 				break;
 
-			TextAttribute attribute = getTokenTextAttribute(token);
-			if (lastAttribute != null && lastAttribute.equals(attribute)) {
-				length += tokenScanner.getTokenLength();
-				firstToken = false;
+			int styleId = runStyleIds[tokenScanner.getTokenStyleId()];
+			if (styleId == runStyleId) {
+				runLength += tokenScanner.getTokenLength();
 			} else {
-				if (!firstToken)
-					addRange(presentation, lastStart, length, lastAttribute);
-				firstToken = false;
-				lastToken = token;
-				lastAttribute = attribute;
-				lastStart = tokenScanner.getTokenOffset();
-				length = tokenScanner.getTokenLength();
+				if (runStyleId >= 0)
+					runCount = addRun(runCount, runStart, runLength, runStyleId);
+				runStyleId = styleId;
+				runStart = tokenScanner.getTokenOffset();
+				runLength = tokenScanner.getTokenLength();
 			}
 		}
 
-		addRange(presentation, lastStart, length, lastAttribute);
+		if (runStyleId >= 0)
+			runCount = addRun(runCount, runStart, runLength, runStyleId);
+		if (runCount == 0)
+			return;
+		presentation.replaceStyleRanges(Arrays.copyOf(runs, runCount));
+		Arrays.fill(runs, 0, runCount, null);
 	}
 
-	private TextAttribute getTokenTextAttribute(IToken token) {
-		Object data = token.getData();
-		if (data instanceof TextAttribute)
-			return (TextAttribute) data;
-		return defaultTextAttribute;
+	/**
+	 * @return the new number of runs
+	 */
+	private int addRun(int runCount, int offset, int length, int styleId) {
+		if (runCount == runs.length)
+			runs = Arrays.copyOf(runs, runs.length * 2);
+		StyleRange run = (StyleRange) styleRangeTemplates[styleId].clone();
+		run.start = offset;
+		run.length = length;
+		runs[runCount] = run;
+		return runCount + 1;
 	}
 
 	@Override
 	public IRegion getDamageRegion(ITypedRegion partition, DocumentEvent e, boolean documentPartitioningChanged) {
-
-		return partition;
+		// everything is restyled once the background parse is done, so until
+		// then just restyle the changed text
+		if (parseJob != null)
+			return new Region(e.getOffset(), e.getText() == null ? 0 : e.getText().length());
+		// the parser compares the tokens and styles before and after the
+		// change, so an unclosed comment or snippet damages as far as it
+		// reaches and no further
+		return parser.getDamageRegion(e);
 	}
 
 	@Override
 	public void setDocument(IDocument document) {
+		cancelBackgroundParse();
 		this.document = document;
+		parser.setDocument(document);
 	}
 
-	private void addRange(TextPresentation presentation, int offset, int length, TextAttribute attr) {
-		if (attr != null) {
-			int style = attr.getStyle();
-			int fontStyle = style & (SWT.ITALIC | SWT.BOLD | SWT.NORMAL);
-			StyleRange styleRange = new StyleRange(offset, length, attr.getForeground(), attr.getBackground(),
-					fontStyle);
-			styleRange.strikeout = (style & TextAttribute.STRIKETHROUGH) != 0;
-			styleRange.underline = (style & TextAttribute.UNDERLINE) != 0;
-			styleRange.font = attr.getFont();
-			presentation.addStyleRange(styleRange);
-		}
+	private static StyleRange createStyleRange(TextAttribute attr) {
+		int style = attr.getStyle();
+		int fontStyle = style & (SWT.ITALIC | SWT.BOLD | SWT.NORMAL);
+		StyleRange styleRange = new StyleRange(0, 0, attr.getForeground(), attr.getBackground(), fontStyle);
+		styleRange.strikeout = (style & TextAttribute.STRIKETHROUGH) != 0;
+		styleRange.underline = (style & TextAttribute.UNDERLINE) != 0;
+		styleRange.font = attr.getFont();
+		return styleRange;
 	}
 }
@@ -8,6 +8,8 @@ public class PEGDocumentProvider extends FileDocumentProvider {
 
 	protected IDocument createDocument(Object element) throws CoreException {
 		IDocument document = super.createDocument(element);
+		if (document != null)
+			new PEGDocumentSetupParticipant().setup(document);
 		return document;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,23 @@
+package tk.programmerjake.peg_parser_generator.eclipse.editors;
+
+import org.eclipse.core.filebuffers.IDocumentSetupParticipant;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentExtension3;
+import org.eclipse.jface.text.IDocumentPartitioner;
+import org.eclipse.jface.text.rules.FastPartitioner;
+
+public class PEGDocumentSetupParticipant implements IDocumentSetupParticipant {
+
+	@Override
+	public void setup(IDocument document) {
+		if (!(document instanceof IDocumentExtension3))
+			return;
+		IDocumentExtension3 extension3 = (IDocumentExtension3) document;
+		if (extension3.getDocumentPartitioner(PEGPartitions.PEG_PARTITIONING) != null)
+			return;
+		IDocumentPartitioner partitioner = new FastPartitioner(PEGParser.createPartitionScanner(),
+				PEGPartitions.getPartitionTypes());
+		partitioner.connect(document);
+		extension3.setDocumentPartitioner(PEGPartitions.PEG_PARTITIONING, partitioner);
+	}
+}
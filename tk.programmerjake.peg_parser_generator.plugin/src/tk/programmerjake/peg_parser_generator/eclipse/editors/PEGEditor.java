@@ -1,18 +1,72 @@
 package tk.programmerjake.peg_parser_generator.eclipse.editors;
 
+import org.eclipse.jface.text.source.ISourceViewer;
+import org.eclipse.jface.text.source.IVerticalRuler;
+import org.eclipse.jface.text.source.projection.ProjectionSupport;
+import org.eclipse.jface.text.source.projection.ProjectionViewer;
+import org.eclipse.swt.widgets.Composite;
 import org.eclipse.ui.editors.text.TextEditor;
+import org.eclipse.ui.views.contentoutline.IContentOutlinePage;
 
 public class PEGEditor extends TextEditor {
 
 	private final ColorManager colorManager = new ColorManager();
+	private final PEGConfiguration configuration;
+	private PEGOutlinePage outlinePage;
+	private ProjectionSupport projectionSupport;
+	private PEGFoldingStructureProvider foldingStructureProvider;
+	private PEGOccurrencesMarker occurrencesMarker;
 
 	public PEGEditor() {
 		super();
-		setSourceViewerConfiguration(new PEGConfiguration(colorManager));
+		configuration = new PEGConfiguration(colorManager);
+		setSourceViewerConfiguration(configuration);
 		setDocumentProvider(new PEGDocumentProvider());
 	}
 
+	@Override
+	protected ISourceViewer createSourceViewer(Composite parent, IVerticalRuler ruler, int styles) {
+		ISourceViewer viewer = new ProjectionViewer(parent, ruler, getOverviewRuler(), isOverviewRulerVisible(),
+				styles);
+		getSourceViewerDecorationSupport(viewer);
+		return viewer;
+	}
+
+	@Override
+	public void createPartControl(Composite parent) {
+		super.createPartControl(parent);
+		ProjectionViewer viewer = (ProjectionViewer) getSourceViewer();
+		projectionSupport = new ProjectionSupport(viewer, getAnnotationAccess(), getSharedColors());
+		projectionSupport.install();
+		viewer.doOperation(ProjectionViewer.TOGGLE);
+		foldingStructureProvider = new PEGFoldingStructureProvider(configuration.getParser(), viewer);
+		foldingStructureProvider.install();
+		occurrencesMarker = new PEGOccurrencesMarker(configuration.getParser(), configuration.getSymbolTable(), viewer);
+		occurrencesMarker.install();
+	}
+
+	@Override
+	public <T> T getAdapter(Class<T> adapter) {
+		if (IContentOutlinePage.class.equals(adapter)) {
+			if (outlinePage == null || outlinePage.getControl() != null && outlinePage.getControl().isDisposed())
+				outlinePage = new PEGOutlinePage(configuration.getParser(), this);
+			return adapter.cast(outlinePage);
+		}
+		if (projectionSupport != null) {
+			Object adapted = projectionSupport.getAdapter(getSourceViewer(), adapter);
+			if (adapted != null)
+				return adapter.cast(adapted);
+		}
+		return super.getAdapter(adapter);
+	}
+
 	public void dispose() {
+		if (occurrencesMarker != null)
+			occurrencesMarker.uninstall();
+		if (foldingStructureProvider != null)
+			foldingStructureProvider.uninstall();
+		if (outlinePage != null)
+			outlinePage.dispose();
 		colorManager.dispose();
 		super.dispose();
 	}
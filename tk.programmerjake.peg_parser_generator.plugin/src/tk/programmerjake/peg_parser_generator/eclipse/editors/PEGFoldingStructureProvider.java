@@ -0,0 +1,226 @@
+package tk.programmerjake.peg_parser_generator.eclipse.editors;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.Position;
+import org.eclipse.jface.text.source.Annotation;
+import org.eclipse.jface.text.source.projection.ProjectionAnnotation;
+import org.eclipse.jface.text.source.projection.ProjectionAnnotationModel;
+import org.eclipse.jface.text.source.projection.ProjectionViewer;
+
+/**
+ * adds folding annotations for multi-line rules, code snippets and block
+ * comments. The annotations of each top-level item are kept with it; when the
+ * grammar is parsed again, the annotations of the items that are the same
+ * nodes as before are left alone, since the document keeps their positions up
+ * to date, and only the annotations of the other items are compared with the
+ * ranges they should have now.
+ */
+final class PEGFoldingStructureProvider implements PEGParser.SyntaxTreeListener {
+
+	private static final class Entry {
+		public final PEGParser.SyntaxNode item;
+		public final ProjectionAnnotation[] annotations;
+
+		public Entry(PEGParser.SyntaxNode item, ProjectionAnnotation[] annotations) {
+			this.item = item;
+			this.annotations = annotations;
+		}
+	}
+
+	private static final ProjectionAnnotation[] NO_ANNOTATIONS = new ProjectionAnnotation[0];
+
+	private final PEGParser parser;
+	private final ProjectionViewer viewer;
+	/**
+	 * the model the annotations were added to
+	 */
+	private ProjectionAnnotationModel annotationModel;
+	/**
+	 * the annotations of the tokens before the first item
+	 */
+	private ProjectionAnnotation[] leadingAnnotations = NO_ANNOTATIONS;
+	/**
+	 * an entry for each item of the last syntax tree, in order
+	 */
+	private final List<Entry> entries = new ArrayList<Entry>();
+
+	public PEGFoldingStructureProvider(PEGParser parser, ProjectionViewer viewer) {
+		this.parser = parser;
+		this.viewer = viewer;
+	}
+
+	public void install() {
+		parser.addSyntaxTreeListener(this);
+		PEGParser.SyntaxTree tree = parser.getSyntaxTree();
+		if (tree != null)
+			syntaxTreeChanged(tree, parser.getSyntaxTreeTokens());
+	}
+
+	public void uninstall() {
+		parser.removeSyntaxTreeListener(this);
+	}
+
+	@Override
+	public void syntaxTreeChanged(PEGParser.SyntaxTree tree, PEGParser.TokenBuffer tokens) {
+		ProjectionAnnotationModel model = viewer.getProjectionAnnotationModel();
+		IDocument document = viewer.getDocument();
+		if (model == null || document == null)
+			return;
+		if (model != annotationModel) {
+			// the annotations we added went away with the old model
+			annotationModel = model;
+			leadingAnnotations = NO_ANNOTATIONS;
+			entries.clear();
+		}
+		int oldCount = entries.size();
+		int newCount = tree.getItemCount();
+		int first = 0;
+		while (first < oldCount && first < newCount && entries.get(first).item == tree.getItem(first))
+			first++;
+		int oldEnd = oldCount;
+		int newEnd = newCount;
+		while (oldEnd > first && newEnd > first && entries.get(oldEnd - 1).item == tree.getItem(newEnd - 1)) {
+			oldEnd--;
+			newEnd--;
+		}
+		Map<ProjectionAnnotation, Position> additions = new HashMap<ProjectionAnnotation, Position>();
+		Map<Position, ProjectionAnnotation> oldPositions = getPositions(model, Arrays.asList(leadingAnnotations));
+		leadingAnnotations = updateAnnotations(document, tokens, 0, tree.getItemStart(0), null, oldPositions,
+				additions);
+		List<ProjectionAnnotation> oldAnnotations = new ArrayList<ProjectionAnnotation>(oldPositions.values());
+		List<ProjectionAnnotation> changedAnnotations = new ArrayList<ProjectionAnnotation>();
+		for (Entry entry : entries.subList(first, oldEnd))
+			changedAnnotations.addAll(Arrays.asList(entry.annotations));
+		oldPositions = getPositions(model, changedAnnotations);
+		List<Entry> changedEntries = new ArrayList<Entry>(newEnd - first);
+		for (int i = first; i < newEnd; i++) {
+			PEGParser.SyntaxNode item = tree.getItem(i);
+			changedEntries.add(new Entry(item, updateAnnotations(document, tokens, tree.getItemStart(i),
+					tree.getItemStart(i + 1), item, oldPositions, additions)));
+		}
+		oldAnnotations.addAll(oldPositions.values());
+		entries.subList(first, oldEnd).clear();
+		entries.addAll(first, changedEntries);
+		if (!oldAnnotations.isEmpty() || !additions.isEmpty())
+			model.modifyAnnotations(oldAnnotations.toArray(new Annotation[oldAnnotations.size()]), additions, null);
+	}
+
+	/**
+	 * @return the current positions of annotations that are still in the
+	 *         model
+	 */
+	private static Map<Position, ProjectionAnnotation> getPositions(ProjectionAnnotationModel model,
+			List<ProjectionAnnotation> annotations) {
+		Map<Position, ProjectionAnnotation> positions = new HashMap<Position, ProjectionAnnotation>();
+		for (ProjectionAnnotation annotation : annotations) {
+			Position position = model.getPosition(annotation);
+			if (position != null && !position.isDeleted())
+				positions.put(new Position(position.getOffset(), position.getLength()), annotation);
+		}
+		return positions;
+	}
+
+	/**
+	 * find the folding ranges of the tokens [start, end), taking the
+	 * annotations out of oldPositions that are already at one of them, so
+	 * folded ranges stay folded
+	 * 
+	 * @param item
+	 *            the item the tokens are in, or null if they're before the
+	 *            first item
+	 * @param additions
+	 *            where to add the new annotations
+	 * @return the annotations for the ranges
+	 */
+	private static ProjectionAnnotation[] updateAnnotations(IDocument document, PEGParser.TokenBuffer tokens,
+			int start, int end, PEGParser.SyntaxNode item, Map<Position, ProjectionAnnotation> oldPositions,
+			Map<ProjectionAnnotation, Position> additions) {
+		List<Position> ranges = findFoldingRanges(document, tokens, start, end, item);
+		if (ranges.isEmpty())
+			return NO_ANNOTATIONS;
+		ProjectionAnnotation[] annotations = new ProjectionAnnotation[ranges.size()];
+		for (int i = 0; i < annotations.length; i++) {
+			annotations[i] = oldPositions.remove(ranges.get(i));
+			if (annotations[i] == null) {
+				annotations[i] = new ProjectionAnnotation();
+				additions.put(annotations[i], ranges.get(i));
+			}
+		}
+		return annotations;
+	}
+
+	private static boolean isComment(PEGParser.TokenType type) {
+		return type == PEGParser.TokenType.Whitespace || type == PEGParser.TokenType.LineComment
+				|| type == PEGParser.TokenType.BlockComment;
+	}
+
+	/**
+	 * @return the whole lines from the line of startOffset through the line
+	 *         of endOffset - 1, or null if that's just one line
+	 */
+	private static Position getLineRange(IDocument document, int startOffset, int endOffset)
+			throws BadLocationException {
+		int startLine = document.getLineOfOffset(startOffset);
+		int endLine = document.getLineOfOffset(Math.max(startOffset, endOffset - 1));
+		if (endLine <= startLine)
+			return null;
+		int start = document.getLineOffset(startLine);
+		int end = endLine + 1 < document.getNumberOfLines() ? document.getLineOffset(endLine + 1)
+				: document.getLength();
+		return new Position(start, end - start);
+	}
+
+	/**
+	 * @return the multi-line ranges to fold in the tokens [start, end): the
+	 *         rule they're in, and their code snippets and block comments
+	 */
+	private static List<Position> findFoldingRanges(IDocument document, PEGParser.TokenBuffer tokens, int start,
+			int end, PEGParser.SyntaxNode item) {
+		List<Position> ranges = new ArrayList<Position>();
+		try {
+			if (item != null && item.kind == PEGParser.SyntaxNode.Kind.Rule) {
+				int last = end - 1;
+				while (last > start && isComment(tokens.getType(last)))
+					last--;
+				Position range = getLineRange(document, tokens.getOffset(start), tokens.getEnd(last));
+				if (range != null)
+					ranges.add(range);
+			}
+			int[] snippetStarts = new int[8];
+			int snippetDepth = 0;
+			for (int i = start; i < end; i++) {
+				Position range = null;
+				switch (tokens.getType(i)) {
+				case BlockComment:
+					range = getLineRange(document, tokens.getOffset(i), tokens.getEnd(i));
+					break;
+				case CodeSnippetStart:
+					if (snippetDepth == snippetStarts.length)
+						snippetStarts = Arrays.copyOf(snippetStarts, snippetDepth * 2);
+					snippetStarts[snippetDepth++] = i;
+					break;
+				case CodeSnippetEnd:
+					if (snippetDepth > 0)
+						range = getLineRange(document, tokens.getOffset(snippetStarts[--snippetDepth]),
+								tokens.getEnd(i));
+					break;
+				default:
+					break;
+				}
+				if (range != null && !range.equals(ranges.isEmpty() ? null : ranges.get(ranges.size() - 1)))
+					ranges.add(range);
+			}
+		} catch (BadLocationException e) {
+			// the tokens don't match the document; they will after the next
+			// parse
+		}
+		return ranges;
+	}
+}
@@ -0,0 +1,98 @@
+package tk.programmerjake.peg_parser_generator.eclipse.editors;
+
+import java.util.List;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.ITextViewer;
+import org.eclipse.jface.text.Region;
+import org.eclipse.jface.text.hyperlink.IHyperlink;
+import org.eclipse.jface.text.hyperlink.IHyperlinkDetector;
+
+/**
+ * links the rule names in a grammar to where the rules are defined
+ */
+final class PEGHyperlinkDetector implements IHyperlinkDetector {
+
+	private static final class RuleHyperlink implements IHyperlink {
+		private final ITextViewer viewer;
+		private final IRegion region;
+		private final IRegion definition;
+		private final String text;
+
+		public RuleHyperlink(ITextViewer viewer, IRegion region, IRegion definition, String text) {
+			this.viewer = viewer;
+			this.region = region;
+			this.definition = definition;
+			this.text = text;
+		}
+
+		@Override
+		public IRegion getHyperlinkRegion() {
+			return region;
+		}
+
+		@Override
+		public String getTypeLabel() {
+			return null;
+		}
+
+		@Override
+		public String getHyperlinkText() {
+			return text;
+		}
+
+		@Override
+		public void open() {
+			IDocument document = viewer.getDocument();
+			if (document == null || definition.getOffset() + definition.getLength() > document.getLength())
+				return;
+			viewer.setSelectedRange(definition.getOffset(), definition.getLength());
+			viewer.revealRange(definition.getOffset(), definition.getLength());
+		}
+	}
+
+	private final PEGSymbolTable symbolTable;
+
+	public PEGHyperlinkDetector(PEGSymbolTable symbolTable) {
+		this.symbolTable = symbolTable;
+	}
+
+	@Override
+	public IHyperlink[] detectHyperlinks(ITextViewer textViewer, IRegion region, boolean canShowMultipleHyperlinks) {
+		IDocument document = textViewer.getDocument();
+		int token = symbolTable.findRuleNameToken(region.getOffset());
+		if (document == null || token < 0)
+			return null;
+		PEGParser.TokenBuffer tokens = symbolTable.getTokens();
+		String name = tokens.getValue(token);
+		IRegion nameRegion = new Region(tokens.getOffset(token), tokens.getLength(token));
+		try {
+			// the syntax tree may be a little behind the document
+			if (!name.equals(document.get(nameRegion.getOffset(), nameRegion.getLength())))
+				return null;
+		} catch (BadLocationException e) {
+			return null;
+		}
+		List<IRegion> definitions = symbolTable.getDefinitions(name);
+		definitions.remove(nameRegion);
+		if (definitions.isEmpty())
+			return null;
+		int count = canShowMultipleHyperlinks ? definitions.size() : 1;
+		IHyperlink[] hyperlinks = new IHyperlink[count];
+		for (int i = 0; i < count; i++) {
+			IRegion definition = definitions.get(i);
+			String text = "Go to Rule " + name;
+			if (definitions.size() > 1) {
+				try {
+					text += " (line " + (document.getLineOfOffset(definition.getOffset()) + 1) + ")";
+				} catch (BadLocationException e) {
+					// leave the line out
+				}
+			}
+			hyperlinks[i] = new RuleHyperlink(textViewer, nameRegion, definition, text);
+		}
+		return hyperlinks;
+	}
+}
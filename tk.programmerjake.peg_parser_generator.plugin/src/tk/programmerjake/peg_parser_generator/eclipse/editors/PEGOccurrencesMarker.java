@@ -0,0 +1,205 @@
+package tk.programmerjake.peg_parser_generator.eclipse.editors;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.ISynchronizable;
+import org.eclipse.jface.text.ITextSelection;
+import org.eclipse.jface.text.Position;
+import org.eclipse.jface.text.source.Annotation;
+import org.eclipse.jface.text.source.IAnnotationModel;
+import org.eclipse.jface.text.source.IAnnotationModelExtension;
+import org.eclipse.jface.text.source.ISourceViewer;
+import org.eclipse.jface.viewers.IPostSelectionProvider;
+import org.eclipse.jface.viewers.ISelection;
+import org.eclipse.jface.viewers.ISelectionChangedListener;
+import org.eclipse.jface.viewers.ISelectionProvider;
+import org.eclipse.jface.viewers.SelectionChangedEvent;
+
+/**
+ * highlights the occurrences of the rule, template parameter or result
+ * variable at the caret. Finding them is a lookup in the symbol table, so
+ * that's done when the caret moves; the annotations are replaced in a job,
+ * since changing the annotation model has it notify its listeners and repaint
+ * the rulers.
+ */
+final class PEGOccurrencesMarker implements ISelectionChangedListener, PEGParser.SyntaxTreeListener {
+
+	public static final String ANNOTATION_TYPE = "tk.programmerjake.peg_parser_generator.eclipse.occurrences";
+	private static final Annotation[] NO_ANNOTATIONS = new Annotation[0];
+
+	private final PEGParser parser;
+	private final PEGSymbolTable symbolTable;
+	private final ISourceViewer viewer;
+	private final Job job = new Job("Mark Occurrences") {
+
+		@Override
+		protected IStatus run(IProgressMonitor monitor) {
+			IAnnotationModel model;
+			List<IRegion> occurrences;
+			String name;
+			synchronized (PEGOccurrencesMarker.this) {
+				model = pendingModel;
+				occurrences = pendingOccurrences;
+				name = pendingName;
+			}
+			if (model == null)
+				return Status.OK_STATUS;
+			Map<Annotation, Position> annotations = new HashMap<Annotation, Position>(occurrences.size() * 2);
+			for (IRegion occurrence : occurrences) {
+				if (monitor.isCanceled())
+					return Status.CANCEL_STATUS;
+				annotations.put(new Annotation(ANNOTATION_TYPE, false, "Occurrence of '" + name + "'"),
+						new Position(occurrence.getOffset(), occurrence.getLength()));
+			}
+			synchronized (PEGOccurrencesMarker.this) {
+				// uninstalling clears the model so the job doesn't mark anything
+				// after
+				if (pendingModel == model)
+					replaceAnnotations(model, annotations);
+			}
+			return Status.OK_STATUS;
+		}
+	};
+	/**
+	 * the occurrences for the job to mark, guarded by this
+	 */
+	private IAnnotationModel pendingModel;
+	private List<IRegion> pendingOccurrences = Collections.emptyList();
+	private String pendingName;
+	/**
+	 * the marked occurrences, guarded by this
+	 */
+	private IAnnotationModel annotationModel;
+	private Annotation[] annotations = NO_ANNOTATIONS;
+	/**
+	 * the occurrences found when the caret last moved, for the UI thread only
+	 */
+	private List<IRegion> occurrences = Collections.emptyList();
+
+	public PEGOccurrencesMarker(PEGParser parser, PEGSymbolTable symbolTable, ISourceViewer viewer) {
+		this.parser = parser;
+		this.symbolTable = symbolTable;
+		this.viewer = viewer;
+		job.setSystem(true);
+		job.setPriority(Job.DECORATE);
+	}
+
+	public void install() {
+		ISelectionProvider selectionProvider = viewer.getSelectionProvider();
+		if (selectionProvider instanceof IPostSelectionProvider)
+			((IPostSelectionProvider) selectionProvider).addPostSelectionChangedListener(this);
+		else
+			selectionProvider.addSelectionChangedListener(this);
+		parser.addSyntaxTreeListener(this);
+		update();
+	}
+
+	public void uninstall() {
+		parser.removeSyntaxTreeListener(this);
+		ISelectionProvider selectionProvider = viewer.getSelectionProvider();
+		if (selectionProvider instanceof IPostSelectionProvider)
+			((IPostSelectionProvider) selectionProvider).removePostSelectionChangedListener(this);
+		else if (selectionProvider != null)
+			selectionProvider.removeSelectionChangedListener(this);
+		job.cancel();
+		synchronized (this) {
+			pendingModel = null;
+		}
+		replaceAnnotations(null, Collections.<Annotation, Position> emptyMap());
+	}
+
+	@Override
+	public void selectionChanged(SelectionChangedEvent event) {
+		update();
+	}
+
+	@Override
+	public void syntaxTreeChanged(PEGParser.SyntaxTree tree, PEGParser.TokenBuffer tokens) {
+		update();
+	}
+
+	/**
+	 * find the occurrences of the name at the caret, and have the job mark
+	 * them if they changed
+	 */
+	private void update() {
+		IDocument document = viewer.getDocument();
+		IAnnotationModel model = viewer.getAnnotationModel();
+		ISelection selection = viewer.getSelectionProvider().getSelection();
+		if (document == null || model == null || !(selection instanceof ITextSelection))
+			return;
+		List<IRegion> occurrences = symbolTable.getOccurrences(((ITextSelection) selection).getOffset());
+		String name = null;
+		try {
+			// the syntax tree may be a little behind the document; leave the
+			// occurrences unmarked until it catches up
+			for (IRegion occurrence : occurrences) {
+				String text = document.get(occurrence.getOffset(), occurrence.getLength());
+				if (name == null)
+					name = text;
+				else if (!name.equals(text)) {
+					occurrences = Collections.emptyList();
+					break;
+				}
+			}
+		} catch (BadLocationException e) {
+			occurrences = Collections.emptyList();
+		}
+		if (occurrences.equals(this.occurrences))
+			return;
+		this.occurrences = occurrences;
+		synchronized (this) {
+			pendingModel = model;
+			pendingOccurrences = occurrences;
+			pendingName = name;
+		}
+		job.cancel();
+		job.schedule();
+	}
+
+	private static Object getLockObject(IAnnotationModel model) {
+		if (model instanceof ISynchronizable) {
+			Object lock = ((ISynchronizable) model).getLockObject();
+			if (lock != null)
+				return lock;
+		}
+		return model;
+	}
+
+	/**
+	 * remove the marked occurrences and add newAnnotations to model
+	 */
+	private synchronized void replaceAnnotations(IAnnotationModel model, Map<Annotation, Position> newAnnotations) {
+		if (annotationModel != null && annotationModel != model) {
+			synchronized (getLockObject(annotationModel)) {
+				for (Annotation annotation : annotations)
+					annotationModel.removeAnnotation(annotation);
+			}
+			annotations = NO_ANNOTATIONS;
+		}
+		annotationModel = model;
+		if (model == null)
+			return;
+		synchronized (getLockObject(model)) {
+			if (model instanceof IAnnotationModelExtension) {
+				((IAnnotationModelExtension) model).replaceAnnotations(annotations, newAnnotations);
+			} else {
+				for (Annotation annotation : annotations)
+					model.removeAnnotation(annotation);
+				for (Map.Entry<Annotation, Position> entry : newAnnotations.entrySet())
+					model.addAnnotation(entry.getKey(), entry.getValue());
+			}
+		}
+		annotations = newAnnotations.keySet().toArray(new Annotation[newAnnotations.size()]);
+	}
+}
@@ -0,0 +1,216 @@
+package tk.programmerjake.peg_parser_generator.eclipse.editors;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jface.viewers.ILazyTreeContentProvider;
+import org.eclipse.jface.viewers.ISelection;
+import org.eclipse.jface.viewers.IStructuredSelection;
+import org.eclipse.jface.viewers.LabelProvider;
+import org.eclipse.jface.viewers.SelectionChangedEvent;
+import org.eclipse.jface.viewers.TreeViewer;
+import org.eclipse.jface.viewers.Viewer;
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.widgets.Composite;
+import org.eclipse.ui.texteditor.ITextEditor;
+import org.eclipse.ui.views.contentoutline.ContentOutlinePage;
+
+/**
+ * lists the rules, typedefs, namespaces and code blocks of a grammar. There's
+ * an entry for each top-level item of the syntax tree; when the tree is parsed
+ * again, only the entries for the items that aren't the same nodes as before
+ * are replaced. The tree is virtual, so only the visible entries get items.
+ */
+final class PEGOutlinePage extends ContentOutlinePage implements PEGParser.SyntaxTreeListener {
+
+	private static final class Entry {
+		public final PEGParser.SyntaxNode item;
+		public final String label;
+		/**
+		 * the token to select, relative to the start of the item
+		 */
+		public final int nameToken;
+
+		public Entry(PEGParser.SyntaxNode item, String label, int nameToken) {
+			this.item = item;
+			this.label = label;
+			this.nameToken = nameToken;
+		}
+
+		@Override
+		public String toString() {
+			return label;
+		}
+	}
+
+	private final class ContentProvider implements ILazyTreeContentProvider {
+
+		@Override
+		public void dispose() {
+		}
+
+		@Override
+		public void inputChanged(Viewer viewer, Object oldInput, Object newInput) {
+		}
+
+		@Override
+		public void updateElement(Object parent, int index) {
+			if (parent == root && index < entries.size()) {
+				getTreeViewer().replace(parent, index, entries.get(index));
+				getTreeViewer().setChildCount(entries.get(index), 0);
+			}
+		}
+
+		@Override
+		public void updateChildCount(Object element, int currentChildCount) {
+			int childCount = element == root ? entries.size() : 0;
+			if (childCount != currentChildCount)
+				getTreeViewer().setChildCount(element, childCount);
+		}
+
+		@Override
+		public Object getParent(Object element) {
+			return element == root ? null : root;
+		}
+	}
+
+	private final PEGParser parser;
+	private final ITextEditor editor;
+	/**
+	 * an entry for each item of tree, in order
+	 */
+	private final List<Entry> entries = new ArrayList<Entry>();
+	/**
+	 * the input of the tree viewer, whose children are the entries
+	 */
+	private final Object root = new Object();
+	private PEGParser.SyntaxTree tree;
+	private PEGParser.TokenBuffer tokens;
+
+	public PEGOutlinePage(PEGParser parser, ITextEditor editor) {
+		this.parser = parser;
+		this.editor = editor;
+		parser.addSyntaxTreeListener(this);
+		PEGParser.SyntaxTree tree = parser.getSyntaxTree();
+		if (tree != null)
+			syntaxTreeChanged(tree, parser.getSyntaxTreeTokens());
+	}
+
+	@Override
+	protected int getTreeStyle() {
+		return super.getTreeStyle() | SWT.VIRTUAL;
+	}
+
+	@Override
+	public void createControl(Composite parent) {
+		super.createControl(parent);
+		TreeViewer viewer = getTreeViewer();
+		viewer.setUseHashlookup(true);
+		viewer.setContentProvider(new ContentProvider());
+		viewer.setLabelProvider(new LabelProvider());
+		viewer.setInput(root);
+		viewer.setChildCount(root, entries.size());
+	}
+
+	@Override
+	public void dispose() {
+		parser.removeSyntaxTreeListener(this);
+		super.dispose();
+	}
+
+	@Override
+	public void selectionChanged(SelectionChangedEvent event) {
+		super.selectionChanged(event);
+		ISelection selection = event.getSelection();
+		if (selection.isEmpty() || !(selection instanceof IStructuredSelection))
+			return;
+		Object element = ((IStructuredSelection) selection).getFirstElement();
+		int index = entries.indexOf(element);
+		if (index < 0)
+			return;
+		int token = tree.getItemStart(index) + entries.get(index).nameToken;
+		int length = editor.getDocumentProvider().getDocument(editor.getEditorInput()).getLength();
+		// the tree may be a little behind the document
+		int offset = Math.min(tokens.getOffset(token), length);
+		editor.selectAndReveal(offset, Math.min(tokens.getLength(token), length - offset));
+	}
+
+	@Override
+	public void syntaxTreeChanged(PEGParser.SyntaxTree tree, PEGParser.TokenBuffer tokens) {
+		int oldCount = entries.size();
+		int newCount = tree.getItemCount();
+		int first = 0;
+		while (first < oldCount && first < newCount && entries.get(first).item == tree.getItem(first))
+			first++;
+		int oldEnd = oldCount;
+		int newEnd = newCount;
+		while (oldEnd > first && newEnd > first && entries.get(oldEnd - 1).item == tree.getItem(newEnd - 1)) {
+			oldEnd--;
+			newEnd--;
+		}
+		this.tree = tree;
+		this.tokens = tokens;
+		TreeViewer viewer = getTreeViewer();
+		if (viewer != null && viewer.getControl().isDisposed())
+			viewer = null;
+		int index = first;
+		for (; index < oldEnd && index < newEnd; index++) {
+			entries.set(index, createEntry(tree, tokens, index));
+			if (viewer != null)
+				viewer.replace(root, index, entries.get(index));
+		}
+		if (oldEnd > index) {
+			entries.subList(index, oldEnd).clear();
+			if (viewer != null)
+				for (int i = oldEnd - 1; i >= index; i--)
+					viewer.remove(root, i);
+		}
+		for (; index < newEnd; index++) {
+			entries.add(index, createEntry(tree, tokens, index));
+			if (viewer != null)
+				viewer.insert(root, entries.get(index), index);
+		}
+	}
+
+	private static Entry createEntry(PEGParser.SyntaxTree tree, PEGParser.TokenBuffer tokens, int index) {
+		PEGParser.SyntaxNode item = tree.getItem(index);
+		int itemStart = tree.getItemStart(index);
+		switch (item.kind) {
+		case Rule: {
+			int name = item.findStyledToken(PEGSyntaxHighlightingConstants.RULE_NAME_ID);
+			if (name < 0)
+				return new Entry(item, "(syntax error)", 0);
+			String label = tokens.getValue(itemStart + name);
+			int type = item.findStyledToken(PEGSyntaxHighlightingConstants.TYPE_NAME_ID);
+			if (type >= 0)
+				label += " : " + tokens.getValue(itemStart + type);
+			return new Entry(item, label, name);
+		}
+		case Typedef: {
+			int name = item.findStyledToken(PEGSyntaxHighlightingConstants.TYPE_NAME_ID);
+			if (name < 0)
+				return new Entry(item, "typedef", 0);
+			return new Entry(item, "typedef " + tokens.getValue(itemStart + name), name);
+		}
+		case Namespace: {
+			StringBuilder label = new StringBuilder("namespace");
+			String separator = " ";
+			for (int i = 0; i < item.getStyledTokenCount(); i++) {
+				if (item.getTokenStyle(i) != PEGSyntaxHighlightingConstants.CODE_IDENTIFIER_ID)
+					continue;
+				label.append(separator).append(tokens.getValue(itemStart + item.getStyledToken(i)));
+				separator = "::";
+			}
+			return new Entry(item, label.toString(), 0);
+		}
+		case CodeBlock: {
+			int name = item.findStyledToken(PEGSyntaxHighlightingConstants.KEYWORD_ID);
+			if (name < 0)
+				return new Entry(item, "code", 0);
+			return new Entry(item, "code " + tokens.getValue(itemStart + name), 0);
+		}
+		default:
+			return new Entry(item, item.kind.toString(), 0);
+		}
+	}
+}
@@ -1,30 +1,231 @@
 package tk.programmerjake.peg_parser_generator.eclipse.editors;
 
-import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import org.eclipse.core.runtime.Assert;
+import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.DocumentEvent;
 import org.eclipse.jface.text.IDocument;
-import org.eclipse.jface.text.TextAttribute;
+import org.eclipse.jface.text.IDocumentExtension4;
+import org.eclipse.jface.text.IDocumentListener;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.ITypedRegion;
+import org.eclipse.jface.text.Region;
+import org.eclipse.jface.text.TextUtilities;
+import org.eclipse.jface.text.rules.IPartitionTokenScanner;
 import org.eclipse.jface.text.rules.IToken;
 import org.eclipse.jface.text.rules.ITokenScanner;
+import org.eclipse.jface.text.rules.Token;
 
 final class PEGParser {
 
 	private final PEGSyntaxHighlightingConstants syntaxHighlightingConstants;
+	private IDocument document;
+	private TokenBuffer tokens;
+	private List<Tokenizer.Checkpoint> checkpoints;
+	private ParseResult result;
+	/**
+	 * the last result with the grammar parsed, which is result unless the
+	 * parse is deferred and there were changes since
+	 */
+	private ParseResult semanticResult;
+	/**
+	 * how the tokens of result differ from the tokens of semanticResult, or
+	 * null if they're the same
+	 */
+	private TokenChange semanticChange;
+	/**
+	 * how the tokens of result differ from the tokens given to the last
+	 * {@link SemanticParse}, or null if they're the same
+	 */
+	private TokenChange changeSinceSemanticParse;
+	private boolean semanticParseDeferred = false;
+	private final List<SyntaxTreeListener> syntaxTreeListeners = new ArrayList<SyntaxTreeListener>();
+	/**
+	 * the modification stamp of document when result was parsed, or
+	 * {@link IDocumentExtension4#UNKNOWN_MODIFICATION_STAMP} if the document
+	 * doesn't have them
+	 */
+	private long resultModificationStamp = IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP;
+	private final Tokenizer.SnippetCache snippetCache = new Tokenizer.SnippetCache();
+	private boolean hasChange;
+	/**
+	 * the modification stamp of document when the last change was added, so
+	 * a parse can tell whether the document changed again since
+	 */
+	private long changeModificationStamp;
+	private int changeStart;
+	private int oldChangeEnd;
+	private int newChangeEnd;
+	/**
+	 * the last change added, so a change isn't added twice when
+	 * {@link #getDamageRegion} is called before the document listener
+	 */
+	private DocumentEvent lastChangeEvent;
+	/**
+	 * the text whose style changed in the last parse, in the new document
+	 */
+	private int damageStart;
+	private int damageEnd;
+	private final IDocumentListener documentListener = new IDocumentListener() {
+
+		@Override
+		public void documentAboutToBeChanged(DocumentEvent event) {
+		}
+
+		@Override
+		public void documentChanged(DocumentEvent event) {
+			addChange(event);
+		}
+	};
+
+	/**
+	 * documents at least this long are lexed in parallel when they are first
+	 * opened
+	 */
+	public static final int DEFAULT_PARALLEL_LEXING_THRESHOLD = 4 << 20;
+
+	/**
+	 * the smallest piece of a document that is lexed on its own
+	 */
+	private static final int MINIMUM_PARALLEL_CHUNK_SIZE = 256 << 10;
+
+	private static final class LexingPoolHolder {
+		public static final ForkJoinPool POOL = new ForkJoinPool();
+	}
+
+	private int parallelLexingThreshold = DEFAULT_PARALLEL_LEXING_THRESHOLD;
 
 	public PEGParser(ColorManager manager) {
 		syntaxHighlightingConstants = new PEGSyntaxHighlightingConstants(manager);
 	}
 
-	public ITokenScanner getTokenScanner() {
-		return new ITokenScanner() {
+	public int getParallelLexingThreshold() {
+		return parallelLexingThreshold;
+	}
+
+	/**
+	 * @param parallelLexingThreshold
+	 *            the length at which documents are lexed in parallel, or
+	 *            {@link Integer#MAX_VALUE} to never lex in parallel
+	 */
+	public void setParallelLexingThreshold(int parallelLexingThreshold) {
+		this.parallelLexingThreshold = parallelLexingThreshold;
+	}
+
+	/**
+	 * told when the grammar of the document is parsed again
+	 */
+	interface SyntaxTreeListener {
+		/**
+		 * called on the thread the document is changed on, once the syntax
+		 * tree matches the document again. Items that didn't change are the
+		 * same nodes as in the last tree.
+		 * 
+		 * @param tokens
+		 *            the tokens the tree's token indexes are in
+		 */
+		void syntaxTreeChanged(SyntaxTree tree, TokenBuffer tokens);
+	}
+
+	public void addSyntaxTreeListener(SyntaxTreeListener listener) {
+		if (!syntaxTreeListeners.contains(listener))
+			syntaxTreeListeners.add(listener);
+	}
+
+	public void removeSyntaxTreeListener(SyntaxTreeListener listener) {
+		syntaxTreeListeners.remove(listener);
+	}
+
+	private void fireSyntaxTreeChanged() {
+		for (SyntaxTreeListener listener : new ArrayList<SyntaxTreeListener>(syntaxTreeListeners))
+			listener.syntaxTreeChanged(semanticResult.tree, semanticResult.tokens);
+	}
+
+	/**
+	 * @return the syntax tree of the document as of the last time the grammar
+	 *         was parsed, or null if it hasn't been
+	 */
+	public SyntaxTree getSyntaxTree() {
+		return semanticResult == null ? null : semanticResult.tree;
+	}
+
+	/**
+	 * @return the tokens the token indexes of {@link #getSyntaxTree()} are in
+	 */
+	public TokenBuffer getSyntaxTreeTokens() {
+		return semanticResult == null ? null : semanticResult.tokens;
+	}
+
+	/**
+	 * @return true if ch can be in a grammar identifier after its first
+	 *         character
+	 */
+	static boolean isIdentifierPart(int ch) {
+		return Tokenizer.isIdentifierContinue(ch);
+	}
+
+	public boolean isSemanticParseDeferred() {
+		return semanticParseDeferred;
+	}
+
+	/**
+	 * @param semanticParseDeferred
+	 *            true to only lex the document after a change, keeping the
+	 *            styles of the unchanged tokens, and leave parsing the grammar
+	 *            to {@link #startSemanticParse}
+	 */
+	public void setSemanticParseDeferred(boolean semanticParseDeferred) {
+		this.semanticParseDeferred = semanticParseDeferred;
+	}
+
+	public PEGSyntaxHighlightingConstants getSyntaxHighlightingConstants() {
+		return syntaxHighlightingConstants;
+	}
+
+	/**
+	 * a token scanner that also gives the style id of each token, so styles
+	 * can be compared without comparing their text attributes
+	 */
+	interface StyleTokenScanner extends ITokenScanner {
+		/**
+		 * @return the style id of the last token returned by
+		 *         {@link #nextToken()}, {@link PEGSyntaxHighlightingConstants#NO_STYLE_ID}
+		 *         for whitespace
+		 */
+		int getTokenStyleId();
+	}
+
+	public StyleTokenScanner getTokenScanner() {
+		return createTokenScanner(false);
+	}
+
+	/**
+	 * @return a scanner that only lexes and parses the text around each range
+	 *         it's given, for styling some of a document quickly before all
+	 *         of it is parsed. Styles that depend on text further back may be
+	 *         wrong.
+	 */
+	public StyleTokenScanner getRegionTokenScanner() {
+		return createTokenScanner(true);
+	}
+
+	private StyleTokenScanner createTokenScanner(final boolean regionOnly) {
+		final IToken[] styleTokens = new IToken[PEGSyntaxHighlightingConstants.STYLE_ID_COUNT];
+		for (int i = 0; i < styleTokens.length; i++)
+			styleTokens[i] = new Token(syntaxHighlightingConstants.getTextAttribute(i));
+		return new StyleTokenScanner() {
 
-			private Iterable<Token> tokens;
-			private Iterator<Token> tokenIterator;
-			private Token lastToken;
+			private ParseResult result;
+			private int tokenIndex;
+			private int styleId;
+			private boolean atRangeStart;
 			private int offset;
 			private int length;
 			private IDocument document;
@@ -34,38 +235,51 @@ final class PEGParser {
 				this.document = document;
 				this.offset = offset;
 				this.length = length;
-				tokens = null;
-				tokenIterator = null;
-				lastToken = null;
+				atRangeStart = true;
 			}
 
 			@Override
 			public IToken nextToken() {
-				if (lastToken == null) {
-					tokens = parse(document);
-					tokenIterator = tokens.iterator();
-					lastToken = tokenIterator.next();
-				} else if (!lastToken.isEOF())
-					lastToken = tokenIterator.next();
-				while (!lastToken.isEOF() && lastToken.offset + lastToken.length <= offset) {
-					lastToken = tokenIterator.next();
+				if (atRangeStart) {
+					atRangeStart = false;
+					result = regionOnly ? parseRegion(document, offset, length) : parse(document);
+					tokenIndex = result.tokens.findTokenEndingAfter(offset);
+				} else if (result.tokens.getType(tokenIndex) != TokenType.EndOfFile)
+					tokenIndex++;
+				TokenBuffer tokens = result.tokens;
+				if (tokens.getOffset(tokenIndex) >= offset + length)
+					return Token.EOF;
+				switch (tokens.getType(tokenIndex)) {
+				case EndOfFile:
+					return Token.EOF;
+				case Whitespace:
+					styleId = PEGSyntaxHighlightingConstants.NO_STYLE_ID;
+					return Token.WHITESPACE;
+				default:
+					styleId = result.styles[tokenIndex];
+					return styleTokens[styleId];
 				}
-				return lastToken;
+			}
+
+			@Override
+			public int getTokenStyleId() {
+				return styleId;
 			}
 
 			@Override
 			public int getTokenOffset() {
-				if (lastToken.offset < offset)
+				int tokenOffset = result.tokens.getOffset(tokenIndex);
+				if (tokenOffset < offset)
 					return offset;
-				if (lastToken.offset > offset + length)
+				if (tokenOffset > offset + length)
 					return offset + length;
-				return lastToken.offset;
+				return tokenOffset;
 			}
 
 			@Override
 			public int getTokenLength() {
-				int tokenOffset = lastToken.offset;
-				int tokenLength = lastToken.length;
+				int tokenOffset = result.tokens.getOffset(tokenIndex);
+				int tokenLength = result.tokens.getLength(tokenIndex);
 				if (tokenOffset < offset) {
 					tokenLength -= offset - tokenOffset;
 					tokenOffset = offset;
@@ -79,894 +293,1087 @@ final class PEGParser {
 		};
 	}
 
-	private enum TokenType {
-		EndOfFile(false),
-		Whitespace(false),
-		LineComment(false),
-		BlockComment(false),
-		Semicolon(false),
-		Colon(false),
-		ColonColon(false),
-		QMark(false),
-		Plus(false),
-		EMark(false),
-		Star(false),
-		FSlash(false),
-		Equal(false),
-		LParen(false),
-		RParen(false),
-		LAngle(false),
-		RAngle(false),
-		Amp(false),
-		Comma(false),
-		String(false),
-		Identifier(true),
-		EOFKeyword(false),
-		TypedefKeyword(false),
-		NamespaceKeyword(false),
-		CodeKeyword(false),
-		FalseKeyword(false),
-		TrueKeyword(false),
-		CharacterClass(false),
-		CodeSnippetStart(false),
-		CodeSnippetEnd(false),
-		CodeSnippetSubstitution(false),
-		CodeSnippetLineComment(false),
-		CodeSnippetBlockComment(false),
-		CodeSnippetKeyword(false),
-		CodeSnippetIdentifier(true),
-		CodeSnippetString(false),
-		CodeSnippetChar(false),
-		CodeSnippetHeaderName(false),
-		CodeSnippetNumber(false),
-		CodeSnippetPunctuator(false),
-		CodeSnippetUnknown(false),
-		Unknown(false);
+	/**
+	 * @return a scanner that splits a document into grammar text, code
+	 *         snippets, block comments and strings. Every partition starts in
+	 *         grammar text, so the scanner can restart at the start of any
+	 *         partition.
+	 */
+	public static IPartitionTokenScanner createPartitionScanner() {
+		return new IPartitionTokenScanner() {
+
+			private final IToken codeSnippetToken = new Token(PEGPartitions.CODE_SNIPPET);
+			private final IToken blockCommentToken = new Token(PEGPartitions.BLOCK_COMMENT);
+			private final IToken stringToken = new Token(PEGPartitions.STRING);
+			private final Tokenizer tokenizer = new Tokenizer();
+			private int end;
+			private int tokenOffset;
+			private int tokenLength;
+
+			@Override
+			public void setRange(IDocument document, int offset, int length) {
+				setPartialRange(document, offset, length, null, -1);
+			}
+
+			@Override
+			public void setPartialRange(IDocument document, int offset, int length, String contentType,
+					int partitionOffset) {
+				// grammar text can be restarted at any line, but the other
+				// partitions have to be rescanned from their start
+				if (partitionOffset >= 0 && contentType != null
+						&& !IDocument.DEFAULT_CONTENT_TYPE.equals(contentType)) {
+					length += offset - partitionOffset;
+					offset = partitionOffset;
+				}
+				end = offset + length;
+				tokenizer.startStreaming(document, offset);
+				tokenOffset = offset;
+				tokenLength = 0;
+			}
+
+			@Override
+			public IToken nextToken() {
+				while (true) {
+					tokenOffset += tokenLength;
+					tokenLength = 0;
+					if (tokenOffset >= end)
+						return Token.EOF;
+					int tokenIndex = tokenizer.nextToken();
+					if (tokenIndex < 0)
+						return Token.EOF;
+					TokenBuffer tokens = tokenizer.getTokens();
+					tokenOffset = tokens.getOffset(tokenIndex);
+					tokenLength = tokens.getLength(tokenIndex);
+					switch (tokens.getType(tokenIndex)) {
+					case BlockComment:
+						return blockCommentToken;
+					case String:
+						return stringToken;
+					case CodeSnippetStart:
+						while (tokens.getType(tokenIndex) != TokenType.CodeSnippetEnd) {
+							tokenIndex = tokenizer.nextToken();
+							if (tokenIndex < 0)
+								break;
+							tokens = tokenizer.getTokens();
+							tokenLength = tokens.getEnd(tokenIndex) - tokenOffset;
+						}
+						return codeSnippetToken;
+					default:
+						break;
+					}
+				}
+			}
+
+			@Override
+			public int getTokenOffset() {
+				return tokenOffset;
+			}
+
+			@Override
+			public int getTokenLength() {
+				return tokenLength;
+			}
+		};
+	}
+
+	enum TokenType {
+		EndOfFile(false, PEGSyntaxHighlightingConstants.NO_STYLE_ID),
+		Whitespace(false, PEGSyntaxHighlightingConstants.NO_STYLE_ID),
+		LineComment(false, PEGSyntaxHighlightingConstants.LINE_COMMENT_ID),
+		BlockComment(false, PEGSyntaxHighlightingConstants.BLOCK_COMMENT_ID),
+		Semicolon(false, PEGSyntaxHighlightingConstants.OPERATOR_ID),
+		Colon(false, PEGSyntaxHighlightingConstants.OPERATOR_ID),
+		ColonColon(false, PEGSyntaxHighlightingConstants.OPERATOR_ID),
+		QMark(false, PEGSyntaxHighlightingConstants.OPERATOR_ID),
+		Plus(false, PEGSyntaxHighlightingConstants.OPERATOR_ID),
+		EMark(false, PEGSyntaxHighlightingConstants.OPERATOR_ID),
+		Star(false, PEGSyntaxHighlightingConstants.OPERATOR_ID),
+		FSlash(false, PEGSyntaxHighlightingConstants.OPERATOR_ID),
+		Equal(false, PEGSyntaxHighlightingConstants.OPERATOR_ID),
+		LParen(false, PEGSyntaxHighlightingConstants.OPERATOR_ID),
+		RParen(false, PEGSyntaxHighlightingConstants.OPERATOR_ID),
+		LAngle(false, PEGSyntaxHighlightingConstants.OPERATOR_ID),
+		RAngle(false, PEGSyntaxHighlightingConstants.OPERATOR_ID),
+		Amp(false, PEGSyntaxHighlightingConstants.OPERATOR_ID),
+		Comma(false, PEGSyntaxHighlightingConstants.OPERATOR_ID),
+		String(false, PEGSyntaxHighlightingConstants.STRING_ID),
+		Identifier(true, PEGSyntaxHighlightingConstants.IDENTIFIER_ID),
+		EOFKeyword(false, PEGSyntaxHighlightingConstants.KEYWORD_ID),
+		TypedefKeyword(false, PEGSyntaxHighlightingConstants.KEYWORD_ID),
+		NamespaceKeyword(false, PEGSyntaxHighlightingConstants.KEYWORD_ID),
+		CodeKeyword(false, PEGSyntaxHighlightingConstants.KEYWORD_ID),
+		FalseKeyword(false, PEGSyntaxHighlightingConstants.KEYWORD_ID),
+		TrueKeyword(false, PEGSyntaxHighlightingConstants.KEYWORD_ID),
+		CharacterClass(false, PEGSyntaxHighlightingConstants.CHARACTER_CLASS_ID),
+		CodeSnippetStart(false, PEGSyntaxHighlightingConstants.CODE_ID),
+		CodeSnippetEnd(false, PEGSyntaxHighlightingConstants.CODE_ID),
+		CodeSnippetSubstitution(false, PEGSyntaxHighlightingConstants.SUBSTITUTION_ID),
+		CodeSnippetLineComment(false, PEGSyntaxHighlightingConstants.CODE_LINE_COMMENT_ID),
+		CodeSnippetBlockComment(false, PEGSyntaxHighlightingConstants.CODE_BLOCK_COMMENT_ID),
+		CodeSnippetKeyword(false, PEGSyntaxHighlightingConstants.CODE_KEYWORD_ID),
+		CodeSnippetIdentifier(false, PEGSyntaxHighlightingConstants.CODE_IDENTIFIER_ID),
+		CodeSnippetString(false, PEGSyntaxHighlightingConstants.CODE_STRING_ID),
+		CodeSnippetChar(false, PEGSyntaxHighlightingConstants.CODE_CHAR_ID),
+		CodeSnippetHeaderName(false, PEGSyntaxHighlightingConstants.CODE_HEADER_NAME_ID),
+		CodeSnippetNumber(false, PEGSyntaxHighlightingConstants.CODE_NUMBER_ID),
+		CodeSnippetPunctuator(false, PEGSyntaxHighlightingConstants.CODE_PUNCTUATOR_ID),
+		CodeSnippetUnknown(false, PEGSyntaxHighlightingConstants.CODE_UNKNOWN_ID),
+		Unknown(false, PEGSyntaxHighlightingConstants.NO_STYLE_ID);
 		public final boolean valueRequired;
+		public final byte styleId;
 
-		private TokenType(boolean valueRequired) {
+		private TokenType(boolean valueRequired, byte styleId) {
 			this.valueRequired = valueRequired;
+			this.styleId = styleId;
 		}
 	}
 
-	static private class Token implements IToken {
-		public final TokenType type;
-		public final int offset;
-		public final int length;
-		public TextAttribute style;
-		public final String value;
+	/**
+	 * the tokens of a document, stored in parallel arrays so a large document
+	 * doesn't need an object for every token. The only tokens with values are
+	 * the ones whose type requires one, so the values are kept in a separate
+	 * table indexed by token index.
+	 */
+	static final class TokenBuffer {
+		private static final TokenType[] TOKEN_TYPES = TokenType.values();
+		private static final int INITIAL_CAPACITY = 256;
 
-		public Token(TokenType type, int offset, int length, TextAttribute style, String value) {
-			this.type = type;
-			this.offset = offset;
-			this.length = length;
-			this.style = style;
-			this.value = value;
-			Assert.isLegal(!type.valueRequired || value != null);
+		private int size = 0;
+		private int[] offsets;
+		private int[] lengths;
+		private byte[] types;
+		private byte[] styles;
+		private int valueCount = 0;
+		private int[] valueTokenIndexes;
+		private String[] values;
+
+		public TokenBuffer(int capacity) {
+			offsets = new int[capacity];
+			lengths = new int[capacity];
+			types = new byte[capacity];
+			styles = new byte[capacity];
+			valueTokenIndexes = new int[Math.min(capacity, INITIAL_CAPACITY)];
+			values = new String[Math.min(capacity, INITIAL_CAPACITY)];
 		}
 
-		@Override
-		public Object getData() {
-			return style;
+		public TokenBuffer() {
+			this(INITIAL_CAPACITY);
 		}
 
-		@Override
-		public boolean isEOF() {
-			return type == TokenType.EndOfFile;
+		public int size() {
+			return size;
 		}
 
-		@Override
-		public boolean isOther() {
-			return !isEOF() && !isUndefined() && !isWhitespace();
+		public void clear() {
+			size = 0;
+			valueCount = 0;
 		}
 
-		@Override
-		public boolean isUndefined() {
-			return type == null;
+		public int getOffset(int index) {
+			return offsets[index];
 		}
 
-		@Override
-		public boolean isWhitespace() {
-			return type == TokenType.Whitespace;
+		public int getLength(int index) {
+			return lengths[index];
 		}
-	}
 
-	private static final class Tokenizer {
+		public int getEnd(int index) {
+			return offsets[index] + lengths[index];
+		}
 
-		private static final int EOF = -1;
+		public TokenType getType(int index) {
+			return TOKEN_TYPES[types[index]];
+		}
 
-		private enum IncludeState {
-			StartOfLine,
-			GotPound,
-			GotInclude,
-			Other,
+		/**
+		 * @return the index of the first token that ends after offset, or of
+		 *         the last token if none do. The tokens cover the document in
+		 *         order, so this is a binary search.
+		 */
+		public int findTokenEndingAfter(int offset) {
+			int low = 0;
+			int high = size - 1;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (offsets[middle] + lengths[middle] <= offset)
+					low = middle + 1;
+				else
+					high = middle;
+			}
+			return low;
 		}
 
-		private final PEGSyntaxHighlightingConstants syntaxHighlightingConstants;
+		public byte getStyle(int index) {
+			return styles[index];
+		}
 
-		public Tokenizer(PEGSyntaxHighlightingConstants syntaxHighlightingConstants) {
-			this.syntaxHighlightingConstants = syntaxHighlightingConstants;
+		public void setStyle(int index, byte style) {
+			styles[index] = style;
 		}
 
-		private IDocument document;
-		private int documentLength;
-		private int currentPosition;
-		private int peek;
-		private int codeNestDepth;
-		private IncludeState includeState;
-		private Token lastPoundToken;
+		/**
+		 * @return a copy of the lexical style of every token, indexed by token
+		 *         index
+		 */
+		public byte[] copyStyles() {
+			return Arrays.copyOf(styles, size);
+		}
 
-		private int readCurrentCharacter() {
-			if (currentPosition >= documentLength) {
-				return EOF;
+		/**
+		 * @return the value of the token at index, or null if it doesn't have
+		 *         one
+		 */
+		public String getValue(int index) {
+			int valueIndex = Arrays.binarySearch(valueTokenIndexes, 0, valueCount, index);
+			if (valueIndex < 0)
+				return null;
+			return values[valueIndex];
+		}
+
+		private void ensureCapacity(int capacity) {
+			if (capacity <= offsets.length)
+				return;
+			int newCapacity = Math.max(capacity, offsets.length + (offsets.length >> 1));
+			offsets = Arrays.copyOf(offsets, newCapacity);
+			lengths = Arrays.copyOf(lengths, newCapacity);
+			types = Arrays.copyOf(types, newCapacity);
+			styles = Arrays.copyOf(styles, newCapacity);
+		}
+
+		private void addValue(int index, String value) {
+			if (valueCount >= values.length) {
+				int newCapacity = values.length + (values.length >> 1) + 1;
+				valueTokenIndexes = Arrays.copyOf(valueTokenIndexes, newCapacity);
+				values = Arrays.copyOf(values, newCapacity);
 			}
+			valueTokenIndexes[valueCount] = index;
+			values[valueCount++] = value;
+		}
+
+		/**
+		 * @return the index of the new token
+		 */
+		public int add(TokenType type, int offset, int length, String value) {
+			Assert.isLegal(!type.valueRequired || value != null);
+			ensureCapacity(size + 1);
+			offsets[size] = offset;
+			lengths[size] = length;
+			types[size] = (byte) type.ordinal();
+			styles[size] = type.styleId;
+			if (value != null)
+				addValue(size, value);
+			return size++;
+		}
+
+		/**
+		 * append the tokens [start, end) from source, moved by offsetDelta
+		 */
+		public void addAll(TokenBuffer source, int start, int end, int offsetDelta) {
+			ensureCapacity(size + end - start);
+			for (int i = start; i < end; i++)
+				offsets[size + i - start] = source.offsets[i] + offsetDelta;
+			System.arraycopy(source.lengths, start, lengths, size, end - start);
+			System.arraycopy(source.types, start, types, size, end - start);
+			System.arraycopy(source.styles, start, styles, size, end - start);
+			int valueStart = Arrays.binarySearch(source.valueTokenIndexes, 0, source.valueCount, start);
+			if (valueStart < 0)
+				valueStart = -valueStart - 1;
+			for (int i = valueStart; i < source.valueCount && source.valueTokenIndexes[i] < end; i++)
+				addValue(source.valueTokenIndexes[i] - start + size, source.values[i]);
+			size += end - start;
+		}
+	}
+
+	/**
+	 * reads the document text a chunk at a time so the tokenizer doesn't need
+	 * to go through {@link IDocument#getChar(int)} for every character
+	 */
+	private static final class CharacterSource {
+		public static final int EOF = -1;
+
+		private static final int CHUNK_SIZE = 8192;
+
+		/**
+		 * how many characters before the requested position are also read, so
+		 * backing up doesn't need to read the chunk again
+		 */
+		private static final int BACKUP_SIZE = 16;
+
+		private final IDocument document;
+		private int length;
+		private final char[] window;
+		private int windowStart = 0;
+		private int windowLength = 0;
+
+		public CharacterSource(IDocument document) {
+			this.document = document;
+			length = document.getLength();
+			window = new char[CHUNK_SIZE];
+		}
+
+		/**
+		 * read from a snapshot of the whole text, which can be shared between
+		 * threads since it's never written
+		 */
+		public CharacterSource(char[] text) {
+			document = null;
+			length = text.length;
+			window = text;
+			windowLength = text.length;
+		}
+
+		public int length() {
+			return length;
+		}
+
+		private boolean fill(int position) {
+			if (document == null)
+				return false;
+			int start = Math.max(0, position - BACKUP_SIZE);
+			int end = Math.min(length, start + window.length);
 			try {
-				char firstChar = document.getChar(currentPosition);
-				if (Character.isHighSurrogate(firstChar) && currentPosition + 1 < documentLength) {
-					try {
-						char secondChar = document.getChar(currentPosition + 1);
-						if (Character.isLowSurrogate(secondChar)) {
-							return Character.toCodePoint(firstChar, secondChar);
-						}
-					} catch (BadLocationException e) {
-					}
-				}
-				return firstChar;
+				document.get(start, end - start).getChars(0, end - start, window, 0);
 			} catch (BadLocationException e) {
-				return EOF;
+				// the document changed under us; treat it as ending here
+				length = Math.min(length, position);
+				windowStart = 0;
+				windowLength = 0;
+				return false;
 			}
+			windowStart = start;
+			windowLength = end - start;
+			return true;
 		}
 
-		private int get() {
-			int retval = peek;
-			if (retval != EOF) {
-				currentPosition += Character.charCount(retval);
-				peek = readCurrentCharacter();
+		/**
+		 * @return the character at position, which must be before the end
+		 */
+		public char charAt(int position) {
+			int index = position - windowStart;
+			if (index < 0 || index >= windowLength) {
+				if (!fill(position))
+					return 0;
+				index = position - windowStart;
 			}
-			return retval;
+			return window[index];
 		}
 
-		private void backup(int ch) {
-			Assert.isLegal(ch != EOF);
-			currentPosition -= Character.charCount(ch);
-			Assert.isLegal(currentPosition >= 0);
+		public boolean regionMatches(int start, int length, char[] text) {
+			if (length != text.length)
+				return false;
+			for (int i = 0; i < length; i++) {
+				if (charAt(start + i) != text[i])
+					return false;
+			}
+			return true;
 		}
 
-		private static boolean isWhitespace(int ch) {
-			switch (ch) {
-			case ' ':
-			case '\t':
-			case '\r':
-			case '\n':
-				return true;
-			default:
+		public boolean regionMatches(int start, int length, String text) {
+			if (length != text.length())
 				return false;
+			for (int i = 0; i < length; i++) {
+				if (charAt(start + i) != text.charAt(i))
+					return false;
 			}
+			return true;
 		}
 
-		private static boolean isCodeWhitespace(int ch) {
-			switch (ch) {
-			case ' ':
-			case '\t':
-			case '\f':
-			case '\u000B':
-			case '\r':
-			case '\n':
-				return true;
-			default:
-				return false;
+		/**
+		 * @return the position of the first of a, b, c or d at or after
+		 *         position, or {@link #length()} if there isn't one. Since
+		 *         the characters searched for are ASCII, this never needs to
+		 *         look at code points.
+		 */
+		public int indexOfAny(int position, char a, char b, char c, char d) {
+			while (position < length) {
+				int index = position - windowStart;
+				if (index < 0 || index >= windowLength) {
+					if (!fill(position))
+						return length;
+					index = position - windowStart;
+				}
+				final char[] window = this.window;
+				final int end = windowLength;
+				for (; index < end; index++) {
+					char ch = window[index];
+					if (ch == a || ch == b || ch == c || ch == d)
+						return windowStart + index;
+				}
+				position = windowStart + end;
 			}
+			return length;
 		}
 
-		private static boolean isIdentifierStart(int ch) {
-			if (ch >= 'a' && ch <= 'z')
-				return true;
-			if (ch >= 'A' && ch <= 'Z')
-				return true;
-			return false;
+		public int indexOfAny(int position, char a, char b) {
+			return indexOfAny(position, a, b, a, b);
 		}
 
-		private static boolean isIdentifierContinue(int ch) {
-			if (isIdentifierStart(ch))
-				return true;
-			if (ch >= '0' && ch <= '9')
-				return true;
-			if (ch == '_')
-				return true;
-			return false;
+		/**
+		 * @return the position just past the end of the block comment whose
+		 *         body starts at position, or {@link #length()} if it isn't
+		 *         closed
+		 */
+		public int skipPastBlockCommentEnd(int position) {
+			while (true) {
+				position = indexOfAny(position, '*', '*');
+				if (position >= length)
+					return length;
+				position++;
+				if (position < length && charAt(position) == '/')
+					return position + 1;
+			}
 		}
 
-		private static boolean isCodeIdentifierStart(int ch) {
-			if (ch >= 'a' && ch <= 'z')
-				return true;
-			if (ch >= 'A' && ch <= 'Z')
-				return true;
-			if (ch == '_')
-				return true;
-			return false;
+		/**
+		 * @return the position of the first character at or after position
+		 *         that isn't an ASCII character in characterClass
+		 */
+		public int skipCharacterClass(int position, byte[] characterClasses, int characterClass) {
+			while (position < length) {
+				int index = position - windowStart;
+				if (index < 0 || index >= windowLength) {
+					if (!fill(position))
+						return length;
+					index = position - windowStart;
+				}
+				final char[] window = this.window;
+				final int end = windowLength;
+				for (; index < end; index++) {
+					char ch = window[index];
+					if (ch >= characterClasses.length || (characterClasses[ch] & characterClass) == 0)
+						return windowStart + index;
+				}
+				position = windowStart + end;
+			}
+			return length;
 		}
 
-		private static boolean isCodeIdentifierContinue(int ch) {
-			if (isCodeIdentifierStart(ch))
-				return true;
-			if (ch >= '0' && ch <= '9')
-				return true;
-			return false;
+		public String getText(int start, int end) {
+			if (start >= windowStart && end <= windowStart + windowLength)
+				return new String(window, start - windowStart, end - start);
+			StringBuilder retval = new StringBuilder(end - start);
+			for (int i = start; i < end; i++)
+				retval.append(charAt(i));
+			return retval.toString();
 		}
 
-		private static boolean isDigit(int ch) {
-			if (ch >= '0' && ch <= '9')
-				return true;
-			return false;
+		/**
+		 * @return the code point at position, or {@link #EOF} if position is
+		 *         past the end
+		 */
+		public int codePointAt(int position) {
+			int index = position - windowStart;
+			if (index < 0 || index >= windowLength || (index + 1 == windowLength && position + 1 < length)) {
+				if (position >= length || !fill(position))
+					return EOF;
+				index = position - windowStart;
+			}
+			char firstChar = window[index];
+			if (Character.isHighSurrogate(firstChar) && index + 1 < windowLength) {
+				char secondChar = window[index + 1];
+				if (Character.isLowSurrogate(secondChar))
+					return Character.toCodePoint(firstChar, secondChar);
+			}
+			return firstChar;
 		}
+	}
 
-		private Token parseCodeStringOrChar(boolean gotOpeningQuote, final int tokenStartPosition) {
-			int quote = '\"';
-			if (!gotOpeningQuote) {
-				Assert.isTrue(peek == '\'' || peek == '\"');
-				quote = peek;
-				get();
+	private static final class Tokenizer {
+
+		private static final int EOF = CharacterSource.EOF;
+
+		private enum IncludeState {
+			StartOfLine,
+			GotPound,
+			GotInclude,
+			Other,
+		}
+
+		/**
+		 * how far apart (in characters) checkpoints are recorded
+		 */
+		private static final int CHECKPOINT_INTERVAL = 1024;
+
+		/**
+		 * the maximum number of characters past the end of a token that are
+		 * looked at to lex it
+		 */
+		private static final int MAX_LOOKAHEAD = 3;
+
+		/**
+		 * C++ limits raw string delimiters to 16 characters; longer ones still
+		 * work, they just grow the buffer
+		 */
+		private static final int RAW_STRING_TERMINATOR_CAPACITY = 16 + 2;
+
+		/**
+		 * the lexer state at a token boundary, used to restart lexing after an
+		 * edit. A codeNestDepth of zero means grammar mode.
+		 */
+		private static final class Checkpoint {
+			public final int offset;
+			public final int tokenIndex;
+			public final int codeNestDepth;
+			public final IncludeState includeState;
+
+			public Checkpoint(int offset, int tokenIndex, int codeNestDepth, IncludeState includeState) {
+				this.offset = offset;
+				this.tokenIndex = tokenIndex;
+				this.codeNestDepth = codeNestDepth;
+				this.includeState = includeState;
 			}
-			while (peek != quote && peek != EOF && peek != '\r' && peek != '\n') {
-				if (peek == '\\') {
-					get();
-					if (peek == EOF)
-						break;
-					get();
-				} else {
-					get();
+
+			public boolean isInCodeSnippet() {
+				return codeNestDepth > 0;
+			}
+
+			public boolean hasSameState(int codeNestDepth, IncludeState includeState) {
+				return this.codeNestDepth == codeNestDepth && this.includeState == includeState;
+			}
+
+			public Checkpoint moved(int offsetDelta, int tokenIndexDelta) {
+				return new Checkpoint(offset + offsetDelta, tokenIndex + tokenIndexDelta, codeNestDepth, includeState);
+			}
+		}
+
+		/**
+		 * a hash table of keywords that is looked up directly from the
+		 * character source, so recognizing a keyword doesn't allocate. The
+		 * hash is the same as {@link String#hashCode()}, so it can be
+		 * computed while the identifier is read.
+		 */
+		private static final class KeywordTable {
+			private final char[][] keywords;
+			private final int[] hashes;
+			private final TokenType[] types;
+			private final int mask;
+			private int count = 0;
+
+			/**
+			 * @param maximumCount
+			 *            the most keywords that will be put in this table
+			 */
+			public KeywordTable(int maximumCount) {
+				int size = Integer.highestOneBit(maximumCount * 4 - 1) << 1;
+				keywords = new char[size][];
+				hashes = new int[size];
+				types = new TokenType[size];
+				mask = size - 1;
+			}
+
+			public KeywordTable put(TokenType type, String... keywords) {
+				for (String keyword : keywords)
+					put(keyword, type);
+				return this;
+			}
+
+			public KeywordTable put(String keyword, TokenType type) {
+				Assert.isLegal(++count * 2 <= keywords.length);
+				int hash = keyword.hashCode();
+				int index = hash & mask;
+				while (keywords[index] != null) {
+					Assert.isLegal(!keyword.equals(new String(keywords[index])));
+					index = (index + 1) & mask;
 				}
+				keywords[index] = keyword.toCharArray();
+				hashes[index] = hash;
+				types[index] = type;
+				return this;
 			}
-			if (peek == quote) {
-				get();
-				if (isCodeIdentifierStart(peek)) {
-					do
-						get();
-					while (isCodeIdentifierContinue(peek));
+
+			/**
+			 * @return the type of the keyword at [start, start + length) in
+			 *         source, or null if it's not a keyword
+			 */
+			public TokenType lookup(CharacterSource source, int start, int length, int hash) {
+				for (int index = hash & mask; keywords[index] != null; index = (index + 1) & mask) {
+					if (hashes[index] == hash && source.regionMatches(start, length, keywords[index]))
+						return types[index];
 				}
+				return null;
 			}
-			if (quote == '\'')
-				return new Token(TokenType.CodeSnippetChar, tokenStartPosition, currentPosition - tokenStartPosition,
-						syntaxHighlightingConstants.codeCharTextAttribute, null);
-			return new Token(TokenType.CodeSnippetString, tokenStartPosition, currentPosition - tokenStartPosition,
-					syntaxHighlightingConstants.codeStringTextAttribute, null);
 		}
 
-		private static <T> boolean isSameSequence(Iterable<T> a, Iterable<T> b) {
-			Iterator<T> aIterator = a.iterator();
-			Iterator<T> bIterator = b.iterator();
-			while (true) {
-				if (!aIterator.hasNext())
-					return !bIterator.hasNext();
-				if (!bIterator.hasNext())
-					return false;
-				T aValue = aIterator.next();
-				T bValue = bIterator.next();
-				if (aValue == null ? bValue != null : !aValue.equals(bValue))
-					return false;
+		private static final KeywordTable GRAMMAR_KEYWORDS = new KeywordTable(6).put("EOF", TokenType.EOFKeyword)
+				.put("typedef", TokenType.TypedefKeyword).put("code", TokenType.CodeKeyword)
+				.put("namespace", TokenType.NamespaceKeyword).put("false", TokenType.FalseKeyword)
+				.put("true", TokenType.TrueKeyword);
+
+		private static final KeywordTable PREPROCESSOR_DIRECTIVES = new KeywordTable(13).put(
+				TokenType.CodeSnippetKeyword, "include", "define", "undef", "if", "ifdef", "ifndef", "else", "elif",
+				"endif", "line", "error", "pragma", "warning");
+
+		private static final KeywordTable CODE_KEYWORDS = new KeywordTable(128).put(TokenType.CodeSnippetKeyword,
+				"defined", "__has_include", "alignas", "alignof", "and", "and_eq", "asm", "atomic_cancel",
+				"atomic_commit", "atomic_noexcept", "auto", "bitand", "bitor", "bool", "break", "case", "catch",
+				"char", "char16_t", "char32_t", "class", "compl", "concept", "const", "constexpr", "const_cast",
+				"continue", "decltype", "default", "delete", "do", "double", "dynamic_cast", "else", "enum",
+				"explicit", "export", "extern", "false", "float", "for", "friend", "goto", "if", "inline", "int",
+				"import", "long", "module", "mutable", "namespace", "new", "noexcept", "not", "not_eq", "nullptr",
+				"operator", "or", "or_eq", "private", "protected", "public", "register", "reinterpret_cast",
+				"requires", "return", "short", "signed", "sizeof", "static", "static_assert", "static_cast",
+				"struct", "switch", "synchronized", "template", "this", "thread_local", "throw", "true", "try",
+				"typedef", "typeid", "typename", "union", "unsigned", "using", "virtual", "void", "volatile",
+				"wchar_t", "while", "xor", "xor_eq", "override", "final", "transaction_safe",
+				"transaction_safe_dynamic", "__attribute__", "__declspec", "__restrict", "_Pragma", "__asm",
+				"__extension__");
+
+		/**
+		 * a DFA recognizing a fixed set of punctuators, with a dense
+		 * transition table indexed by state and ASCII character. Every
+		 * punctuator is ASCII, so any other character just has no
+		 * transition. Built from the punctuator list, which is the
+		 * specification of the tokens it accepts.
+		 */
+		private static final class PunctuatorTable {
+			private static final int ASCII_SIZE = 0x80;
+			public static final int START_STATE = 0;
+			public static final int NO_STATE = -1;
+
+			private short[] transitions = new short[ASCII_SIZE];
+			private TokenType[] acceptedTypes = new TokenType[1];
+			private int stateCount = 1;
+
+			public PunctuatorTable() {
+				Arrays.fill(transitions, (short) NO_STATE);
 			}
-		}
 
-		private Token nextCodeTokenInternal(final int tokenStartPosition) {
-			if (isCodeWhitespace(peek)) {
-				do {
-					if (peek == '\r' || peek == '\n')
-						includeState = IncludeState.StartOfLine;
-					get();
-				} while (isCodeWhitespace(peek));
-				return new Token(TokenType.Whitespace, tokenStartPosition, currentPosition - tokenStartPosition, null,
-						null);
+			public PunctuatorTable put(TokenType type, String... punctuators) {
+				for (String punctuator : punctuators)
+					put(punctuator, type);
+				return this;
 			}
-			if (peek == '#') {
-				get();
-				if (peek == '#') {
-					get();
-					includeState = IncludeState.Other;
-				} else if (includeState == IncludeState.StartOfLine) {
-					includeState = IncludeState.GotPound;
+
+			public PunctuatorTable put(String punctuator, TokenType type) {
+				Assert.isLegal(punctuator.length() > 0);
+				int state = START_STATE;
+				for (int i = 0; i < punctuator.length(); i++) {
+					char ch = punctuator.charAt(i);
+					Assert.isLegal(ch < ASCII_SIZE);
+					int nextState = transitions[state * ASCII_SIZE + ch];
+					if (nextState == NO_STATE) {
+						nextState = addState();
+						transitions[state * ASCII_SIZE + ch] = (short) nextState;
+					}
+					state = nextState;
 				}
-				lastPoundToken = new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-						currentPosition - tokenStartPosition, syntaxHighlightingConstants.codePunctuatorTextAttribute,
-						null);
-				return lastPoundToken;
+				Assert.isLegal(acceptedTypes[state] == null);
+				acceptedTypes[state] = type;
+				return this;
 			}
-			if (includeState == IncludeState.GotInclude && (peek == '<' || peek == '\"')) {
-				int terminator = peek == '<' ? '>' : '\"';
-				do {
-					get();
-				} while (peek != terminator && peek != EOF && peek != '\r' && peek != '\n');
-				if (peek == terminator)
-					get();
-				includeState = IncludeState.Other;
-				return new Token(TokenType.CodeSnippetHeaderName, tokenStartPosition,
-						currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeHeaderNameTextAttribute,
-						null);
+
+			private int addState() {
+				Assert.isLegal(stateCount < Short.MAX_VALUE);
+				if (stateCount >= acceptedTypes.length) {
+					int oldLength = transitions.length;
+					transitions = Arrays.copyOf(transitions, oldLength * 2);
+					Arrays.fill(transitions, oldLength, transitions.length, (short) NO_STATE);
+					acceptedTypes = Arrays.copyOf(acceptedTypes, acceptedTypes.length * 2);
+				}
+				return stateCount++;
+			}
+
+			/**
+			 * @return the state after reading ch in state, or {@link #NO_STATE}
+			 */
+			public int next(int state, int ch) {
+				if ((ch & ~(ASCII_SIZE - 1)) != 0)
+					return NO_STATE;
+				return transitions[state * ASCII_SIZE + ch];
+			}
+
+			/**
+			 * @return the type of the punctuator ending in state, or null if
+			 *         state isn't the end of a punctuator
+			 */
+			public TokenType getAcceptedType(int state) {
+				return acceptedTypes[state];
+			}
+		}
+
+		private static final PunctuatorTable GRAMMAR_PUNCTUATORS = new PunctuatorTable()
+				.put(";", TokenType.Semicolon).put("?", TokenType.QMark).put("+", TokenType.Plus)
+				.put("!", TokenType.EMark).put("*", TokenType.Star).put("=", TokenType.Equal)
+				.put("(", TokenType.LParen).put(")", TokenType.RParen).put("&", TokenType.Amp)
+				.put("<", TokenType.LAngle).put(">", TokenType.RAngle).put(",", TokenType.Comma)
+				.put(":", TokenType.Colon).put("::", TokenType.ColonColon).put("/", TokenType.FSlash);
+
+		/**
+		 * all the C++ punctuators except for braces, which change the nesting
+		 * depth
+		 */
+		private static final PunctuatorTable CODE_PUNCTUATORS = new PunctuatorTable().put(
+				TokenType.CodeSnippetPunctuator, "[", "]", "(", ")", ",", ";", "?", "~", ".", "...", ".*", "<", "<:",
+				"<%", "<<", "<<=", "<=", ":", ":>", "::", "%", "%>", "%:", "%=", "+", "+=", "++", "-", "-=", "--",
+				"->", "->*", "*", "*=", "/", "/=", "^", "^=", "&", "&&", "&=", "|", "||", "|=", "!", "!=", "=",
+				"==", ">", ">>", ">>=", ">=");
+
+		private static final int WHITESPACE = 0x1;
+		private static final int CODE_WHITESPACE = 0x2;
+		private static final int IDENTIFIER_START = 0x4;
+		private static final int IDENTIFIER_CONTINUE = 0x8;
+		private static final int CODE_IDENTIFIER_START = 0x10;
+		private static final int CODE_IDENTIFIER_CONTINUE = 0x20;
+		private static final int DIGIT = 0x40;
+
+		/**
+		 * the character classes of each ASCII character; nothing else is in
+		 * any class
+		 */
+		private static final byte[] CHARACTER_CLASSES = new byte[0x80];
+
+		static {
+			for (char ch : " \t\r\n".toCharArray())
+				CHARACTER_CLASSES[ch] |= WHITESPACE;
+			for (char ch : " \t\f\u000B\r\n".toCharArray())
+				CHARACTER_CLASSES[ch] |= CODE_WHITESPACE;
+			for (char ch = 'a'; ch <= 'z'; ch++)
+				CHARACTER_CLASSES[ch] |= IDENTIFIER_START | IDENTIFIER_CONTINUE | CODE_IDENTIFIER_START
+						| CODE_IDENTIFIER_CONTINUE;
+			for (char ch = 'A'; ch <= 'Z'; ch++)
+				CHARACTER_CLASSES[ch] |= IDENTIFIER_START | IDENTIFIER_CONTINUE | CODE_IDENTIFIER_START
+						| CODE_IDENTIFIER_CONTINUE;
+			for (char ch = '0'; ch <= '9'; ch++)
+				CHARACTER_CLASSES[ch] |= IDENTIFIER_CONTINUE | CODE_IDENTIFIER_CONTINUE | DIGIT;
+			CHARACTER_CLASSES['_'] |= IDENTIFIER_CONTINUE | CODE_IDENTIFIER_START | CODE_IDENTIFIER_CONTINUE;
+		}
+
+		private CharacterSource source;
+		private int currentPosition;
+		private int peek;
+		private int codeNestDepth;
+		private IncludeState includeState;
+		private int lastPoundToken;
+		/**
+		 * ')' delimiter '"' for the raw string being lexed
+		 */
+		private int[] rawStringTerminator = new int[RAW_STRING_TERMINATOR_CAPACITY];
+		private int rawStringTerminatorLength = 0;
+		private int[] rawStringFailure = new int[RAW_STRING_TERMINATOR_CAPACITY];
+		private TokenBuffer tokens;
+		private List<Checkpoint> checkpoints;
+		private int nextCheckpointPosition;
+		private SnippetCache snippetCache;
+		/**
+		 * the index of the start token of the snippet being lexed, if it
+		 * should be added to snippetCache when it ends, or -1
+		 */
+		private int pendingSnippetStartToken = -1;
+		private int pendingSnippetEnd;
+		private long pendingSnippetKey;
+		private int firstRelexedToken;
+		private int firstReusedToken;
+		private int reusedTokenIndexDelta;
+
+		private int readCurrentCharacter() {
+			return source.codePointAt(currentPosition);
+		}
+
+		private int get() {
+			int retval = peek;
+			if (retval != EOF) {
+				currentPosition += Character.charCount(retval);
+				peek = readCurrentCharacter();
+			}
+			return retval;
+		}
+
+		/**
+		 * move to position, which must not be in the middle of a surrogate
+		 * pair
+		 */
+		private void skipTo(int position) {
+			currentPosition = position;
+			peek = readCurrentCharacter();
+		}
+
+		public void setSnippetCache(SnippetCache snippetCache) {
+			this.snippetCache = snippetCache;
+		}
+
+		/**
+		 * if the code snippet starting at the current position is in
+		 * snippetCache, add its tokens and move past it. Otherwise, remember
+		 * it so it's added to the cache once it's lexed. The end of the
+		 * snippet is found by just matching braces; if that doesn't agree with
+		 * the lexer, the snippet isn't cached.
+		 * 
+		 * @return true if the snippet was found in the cache
+		 */
+		private boolean readCachedSnippet() {
+			final int start = currentPosition;
+			pendingSnippetStartToken = -1;
+			int end = start + 1;
+			for (int depth = 1; depth > 0; end++) {
+				end = source.indexOfAny(end, '{', '}');
+				if (end >= source.length() || end - start >= SnippetCache.MAX_CACHED_SNIPPET_LENGTH)
+					return false;
+				depth += source.charAt(end) == '{' ? 1 : -1;
+			}
+			if (end - start < SnippetCache.MIN_CACHED_SNIPPET_LENGTH)
+				return false;
+			// FNV-1a, starting from the state the snippet is lexed in
+			long key = 0xcbf29ce484222325L ^ IncludeState.StartOfLine.ordinal();
+			for (int i = start; i < end; i++)
+				key = (key ^ source.charAt(i)) * 0x100000001b3L;
+			TokenBuffer cachedTokens = snippetCache.get(key, source, start, end);
+			if (cachedTokens == null) {
+				pendingSnippetStartToken = tokens.size();
+				pendingSnippetEnd = end;
+				pendingSnippetKey = key;
+				return false;
+			}
+			tokens.addAll(cachedTokens, 0, cachedTokens.size(), start);
+			skipTo(end);
+			return true;
+		}
+
+		private void addPendingSnippetToCache(int endToken) {
+			if (pendingSnippetStartToken < 0)
+				return;
+			int start = tokens.getOffset(pendingSnippetStartToken);
+			if (currentPosition == pendingSnippetEnd) {
+				TokenBuffer snippetTokens = new TokenBuffer(endToken + 1 - pendingSnippetStartToken);
+				snippetTokens.addAll(tokens, pendingSnippetStartToken, endToken + 1, -start);
+				snippetCache.put(pendingSnippetKey, source.getText(start, currentPosition).toCharArray(),
+						snippetTokens);
+			}
+			pendingSnippetStartToken = -1;
+		}
+
+		private void backup(int ch) {
+			Assert.isLegal(ch != EOF);
+			currentPosition -= Character.charCount(ch);
+			Assert.isLegal(currentPosition >= 0);
+			peek = readCurrentCharacter();
+		}
+
+		private static boolean isInCharacterClass(int ch, int characterClass) {
+			return (ch & ~(CHARACTER_CLASSES.length - 1)) == 0 && (CHARACTER_CLASSES[ch] & characterClass) != 0;
+		}
+
+		private static boolean isWhitespace(int ch) {
+			return isInCharacterClass(ch, WHITESPACE);
+		}
+
+		private static boolean isCodeWhitespace(int ch) {
+			return isInCharacterClass(ch, CODE_WHITESPACE);
+		}
+
+		private static boolean isIdentifierStart(int ch) {
+			return isInCharacterClass(ch, IDENTIFIER_START);
+		}
+
+		private static boolean isIdentifierContinue(int ch) {
+			return isInCharacterClass(ch, IDENTIFIER_CONTINUE);
+		}
+
+		private static boolean isCodeIdentifierStart(int ch) {
+			return isInCharacterClass(ch, CODE_IDENTIFIER_START);
+		}
+
+		private static boolean isCodeIdentifierContinue(int ch) {
+			return isInCharacterClass(ch, CODE_IDENTIFIER_CONTINUE);
+		}
+
+		private static boolean isDigit(int ch) {
+			return isInCharacterClass(ch, DIGIT);
+		}
+
+		/**
+		 * read the longest punctuator in punctuators starting at the current
+		 * position
+		 * 
+		 * @return the type of the punctuator read, or null if there isn't one,
+		 *         in which case nothing is read
+		 */
+		private TokenType readPunctuator(PunctuatorTable punctuators) {
+			final int startPosition = currentPosition;
+			TokenType type = null;
+			int endPosition = startPosition;
+			int state = punctuators.next(PunctuatorTable.START_STATE, peek);
+			while (state != PunctuatorTable.NO_STATE) {
+				get();
+				if (punctuators.getAcceptedType(state) != null) {
+					type = punctuators.getAcceptedType(state);
+					endPosition = currentPosition;
+				}
+				state = punctuators.next(state, peek);
 			}
-			if (peek == '/') {
+			if (currentPosition != endPosition) {
+				// punctuators are all ASCII, so this doesn't split a surrogate
+				// pair
+				skipTo(endPosition);
+			}
+			return type;
+		}
+
+		private int parseCodeStringOrChar(boolean gotOpeningQuote, final int tokenStartPosition) {
+			int quote = '\"';
+			if (!gotOpeningQuote) {
+				Assert.isTrue(peek == '\'' || peek == '\"');
+				quote = peek;
 				get();
-				if (peek == '*') {
-					get();
-					boolean wasLastStar = false;
-					while (!wasLastStar || peek != '/') {
-						if (peek == EOF)
-							break;
-						wasLastStar = peek == '*';
+			}
+			while (true) {
+				skipTo(source.indexOfAny(currentPosition, (char) quote, '\\', '\r', '\n'));
+				if (peek != '\\')
+					break;
+				get();
+				if (peek == EOF)
+					break;
+				get();
+			}
+			if (peek == quote) {
+				get();
+				if (isCodeIdentifierStart(peek)) {
+					do
 						get();
-					}
-					get();
-					return new Token(TokenType.CodeSnippetBlockComment, tokenStartPosition,
-							currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.codeBlockCommentTextAttribute, null);
+					while (isCodeIdentifierContinue(peek));
 				}
-				includeState = IncludeState.Other;
-				if (peek == '/') {
-					while (peek != '\r' && peek != '\n' && peek != EOF) {
-						get();
+			}
+			if (quote == '\'')
+				return addToken(TokenType.CodeSnippetChar, tokenStartPosition);
+			return addToken(TokenType.CodeSnippetString, tokenStartPosition);
+		}
+
+		private void addRawStringTerminatorCharacter(int ch) {
+			if (rawStringTerminatorLength >= rawStringTerminator.length)
+				rawStringTerminator = Arrays.copyOf(rawStringTerminator, rawStringTerminator.length * 2);
+			rawStringTerminator[rawStringTerminatorLength++] = ch;
+		}
+
+		/**
+		 * skip to just past the first occurrence of the terminator in
+		 * rawStringTerminator, or to the end of the document. Uses
+		 * Knuth-Morris-Pratt so no character is read more than once.
+		 */
+		private void skipRawStringBody() {
+			final int[] terminator = rawStringTerminator;
+			final int terminatorLength = rawStringTerminatorLength;
+			if (rawStringFailure.length < terminatorLength)
+				rawStringFailure = new int[terminator.length];
+			final int[] failure = rawStringFailure;
+			failure[0] = 0;
+			for (int i = 1, matched = 0; i < terminatorLength; i++) {
+				while (matched > 0 && terminator[i] != terminator[matched])
+					matched = failure[matched - 1];
+				if (terminator[i] == terminator[matched])
+					matched++;
+				failure[i] = matched;
+			}
+			int matched = 0;
+			while (peek != EOF) {
+				int ch = get();
+				while (matched > 0 && ch != terminator[matched])
+					matched = failure[matched - 1];
+				if (ch == terminator[matched])
+					matched++;
+				if (matched == terminatorLength)
+					return;
+			}
+		}
+
+		private int nextCodeTokenInternal(final int tokenStartPosition) {
+			if (isCodeWhitespace(peek)) {
+				int end = source.skipCharacterClass(currentPosition, CHARACTER_CLASSES, CODE_WHITESPACE);
+				for (int i = currentPosition; i < end; i++) {
+					char ch = source.charAt(i);
+					if (ch == '\r' || ch == '\n') {
+						includeState = IncludeState.StartOfLine;
+						break;
 					}
-					return new Token(TokenType.CodeSnippetLineComment, tokenStartPosition,
-							currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.codeLineCommentTextAttribute, null);
 				}
-				if (peek == '=') {
+				skipTo(end);
+				return addToken(TokenType.Whitespace, tokenStartPosition);
+			}
+			if (peek == '#') {
+				get();
+				if (peek == '#') {
 					get();
-					return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-							currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.codePunctuatorTextAttribute, null);
+					includeState = IncludeState.Other;
+				} else if (includeState == IncludeState.StartOfLine) {
+					includeState = IncludeState.GotPound;
 				}
-				return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-						currentPosition - tokenStartPosition, syntaxHighlightingConstants.codePunctuatorTextAttribute,
-						null);
+				lastPoundToken = addToken(TokenType.CodeSnippetPunctuator, tokenStartPosition);
+				return lastPoundToken;
+			}
+			if (includeState == IncludeState.GotInclude && (peek == '<' || peek == '\"')) {
+				int terminator = peek == '<' ? '>' : '\"';
+				do {
+					get();
+				} while (peek != terminator && peek != EOF && peek != '\r' && peek != '\n');
+				if (peek == terminator)
+					get();
+				includeState = IncludeState.Other;
+				return addToken(TokenType.CodeSnippetHeaderName, tokenStartPosition);
+			}
+			if (peek == '/' && source.codePointAt(currentPosition + 1) == '*') {
+				skipTo(source.skipPastBlockCommentEnd(currentPosition + 2));
+				return addToken(TokenType.CodeSnippetBlockComment, tokenStartPosition);
+			}
+			if (peek == '/' && source.codePointAt(currentPosition + 1) == '/') {
+				includeState = IncludeState.Other;
+				skipTo(source.indexOfAny(currentPosition, '\r', '\n'));
+				return addToken(TokenType.CodeSnippetLineComment, tokenStartPosition);
 			}
 			if (isCodeIdentifierStart(peek)) {
-				StringBuilder valueBuilder = new StringBuilder();
+				int hash = 0;
 				do {
-					valueBuilder.appendCodePoint(get());
+					hash = 31 * hash + get();
 				} while (isCodeIdentifierContinue(peek));
-				String value = valueBuilder.toString();
+				final int length = currentPosition - tokenStartPosition;
 				if (includeState == IncludeState.GotPound) {
-					lastPoundToken.style = syntaxHighlightingConstants.keywordTextAttribute;
-					if (value.equals("include")) {
+					tokens.setStyle(lastPoundToken, PEGSyntaxHighlightingConstants.KEYWORD_ID);
+					TokenType type = PREPROCESSOR_DIRECTIVES.lookup(source, tokenStartPosition, length, hash);
+					if (type != null && source.regionMatches(tokenStartPosition, length, "include"))
 						includeState = IncludeState.GotInclude;
-						return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-								currentPosition - tokenStartPosition,
-								syntaxHighlightingConstants.codeKeywordTextAttribute, null);
-					}
-					includeState = IncludeState.Other;
-					if (value.equals("define"))
-						return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-								currentPosition - tokenStartPosition,
-								syntaxHighlightingConstants.codeKeywordTextAttribute, null);
-					if (value.equals("undef"))
-						return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-								currentPosition - tokenStartPosition,
-								syntaxHighlightingConstants.codeKeywordTextAttribute, null);
-					if (value.equals("if"))
-						return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-								currentPosition - tokenStartPosition,
-								syntaxHighlightingConstants.codeKeywordTextAttribute, null);
-					if (value.equals("ifdef"))
-						return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-								currentPosition - tokenStartPosition,
-								syntaxHighlightingConstants.codeKeywordTextAttribute, null);
-					if (value.equals("ifndef"))
-						return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-								currentPosition - tokenStartPosition,
-								syntaxHighlightingConstants.codeKeywordTextAttribute, null);
-					if (value.equals("else"))
-						return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-								currentPosition - tokenStartPosition,
-								syntaxHighlightingConstants.codeKeywordTextAttribute, null);
-					if (value.equals("elif"))
-						return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-								currentPosition - tokenStartPosition,
-								syntaxHighlightingConstants.codeKeywordTextAttribute, null);
-					if (value.equals("endif"))
-						return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-								currentPosition - tokenStartPosition,
-								syntaxHighlightingConstants.codeKeywordTextAttribute, null);
-					if (value.equals("line"))
-						return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-								currentPosition - tokenStartPosition,
-								syntaxHighlightingConstants.codeKeywordTextAttribute, null);
-					if (value.equals("error"))
-						return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-								currentPosition - tokenStartPosition,
-								syntaxHighlightingConstants.codeKeywordTextAttribute, null);
-					if (value.equals("pragma"))
-						return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-								currentPosition - tokenStartPosition,
-								syntaxHighlightingConstants.codeKeywordTextAttribute, null);
-					if (value.equals("warning"))
-						return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-								currentPosition - tokenStartPosition,
-								syntaxHighlightingConstants.codeKeywordTextAttribute, null);
-					return new Token(TokenType.CodeSnippetIdentifier, tokenStartPosition,
-							currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.codeIdentifierTextAttribute, value);
+					else
+						includeState = IncludeState.Other;
+					if (type != null)
+						return addToken(type, tokenStartPosition);
+					return addToken(TokenType.CodeSnippetIdentifier, tokenStartPosition);
 				}
 				includeState = IncludeState.Other;
 				if (peek == '\'' || peek == '\"') {
-					if (value.equals("u") || value.equals("U") || value.equals("u8") || value.equals("L")) {
+					if (source.regionMatches(tokenStartPosition, length, "u")
+							|| source.regionMatches(tokenStartPosition, length, "U")
+							|| source.regionMatches(tokenStartPosition, length, "u8")
+							|| source.regionMatches(tokenStartPosition, length, "L")) {
 						return parseCodeStringOrChar(false, tokenStartPosition);
 					}
 				}
 				if (peek == '\"') {
-					if (value.endsWith("R")) {
+					if (source.charAt(currentPosition - 1) == 'R') {
 						get();
-						ArrayList<Integer> seperator = new ArrayList<Integer>();
-						seperator.add((int) ')');
+						rawStringTerminatorLength = 0;
+						addRawStringTerminatorCharacter(')');
 						while (peek != '(' && peek != ')' && peek != '\"' && peek != EOF && peek != ' ' && peek != ' '
 								&& peek != '\\' && peek != '\t' && peek != '\r' && peek != '\n') {
-							seperator.add(get());
+							addRawStringTerminatorCharacter(get());
 						}
 						if (peek != '(') {
 							return parseCodeStringOrChar(true, tokenStartPosition);
 						}
 						get();
-						seperator.add((int) '\"');
-						ArrayDeque<Integer> recentCharacters = new ArrayDeque<Integer>(seperator.size());
-						while (peek != EOF && !isSameSequence(seperator, recentCharacters)) {
-							if (recentCharacters.size() >= seperator.size())
-								recentCharacters.removeFirst();
-							recentCharacters.add(get());
-						}
+						addRawStringTerminatorCharacter('\"');
+						skipRawStringBody();
 						if (isCodeIdentifierStart(peek)) {
 							do
 								get();
 							while (isCodeIdentifierContinue(peek));
 						}
-						return new Token(TokenType.CodeSnippetString, tokenStartPosition,
-								currentPosition - tokenStartPosition,
-								syntaxHighlightingConstants.codeStringTextAttribute, null);
+						return addToken(TokenType.CodeSnippetString, tokenStartPosition);
 					}
 				}
-				if (value.equals("defined"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("__has_include"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("alignas"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("alignof"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("and"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("and_eq"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("asm"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("atomic_cancel"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("atomic_commit"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("atomic_noexcept"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("auto"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("bitand"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("bitor"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("bool"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("break"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("case"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("catch"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("char"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("char16_t"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("char32_t"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("class"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("compl"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("concept"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("const"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("constexpr"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("const_cast"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("continue"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("decltype"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("default"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("delete"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("do"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("double"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("dynamic_cast"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("else"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("enum"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("explicit"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("export"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("extern"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("false"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("float"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("for"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("friend"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("goto"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("if"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("inline"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("int"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("import"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("long"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("module"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("mutable"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("namespace"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("new"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("noexcept"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("not"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("not_eq"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("nullptr"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("operator"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("or"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("or_eq"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("private"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("protected"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("public"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("register"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("reinterpret_cast"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("requires"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("return"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("short"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("signed"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("sizeof"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("static"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("static_assert"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("static_cast"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("struct"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("switch"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("synchronized"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("template"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("this"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("thread_local"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("throw"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("true"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("try"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("typedef"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("typeid"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("typename"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("union"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("unsigned"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("using"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("virtual"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("void"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("volatile"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("wchar_t"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("while"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("xor"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("xor_eq"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("override"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("final"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("transaction_safe"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("transaction_safe_dynamic"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("__attribute__"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("__declspec"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("__restrict"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("_Pragma"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("__asm"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				if (value.equals("__extension__"))
-					return new Token(TokenType.CodeSnippetKeyword, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeKeywordTextAttribute,
-							null);
-				return new Token(TokenType.CodeSnippetIdentifier, tokenStartPosition,
-						currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeIdentifierTextAttribute,
-						value);
+				TokenType type = CODE_KEYWORDS.lookup(source, tokenStartPosition, length, hash);
+				if (type != null)
+					return addToken(type, tokenStartPosition);
+				return addToken(TokenType.CodeSnippetIdentifier, tokenStartPosition);
 			}
 			includeState = IncludeState.Other;
-			if (peek == '.' || isDigit(peek)) {
-				if (peek == '.') {
-					get();
-					if (peek == '.') {
-						get();
-						if (peek == '.') {
-							get();
-						} else
-							backup('.');
-						return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-								currentPosition - tokenStartPosition,
-								syntaxHighlightingConstants.codePunctuatorTextAttribute, null);
-					}
-					if (peek == '*') {
-						get();
-						return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-								currentPosition - tokenStartPosition,
-								syntaxHighlightingConstants.codePunctuatorTextAttribute, null);
-					}
-					if (!isDigit(peek))
-						return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-								currentPosition - tokenStartPosition,
-								syntaxHighlightingConstants.codePunctuatorTextAttribute, null);
-				} else {
-					get();
-				}
+			if (isDigit(peek) || (peek == '.' && isDigit(source.codePointAt(currentPosition + 1)))) {
+				get();
 				while (isDigit(peek) || peek == 'e' || peek == 'E' || isCodeIdentifierContinue(peek) || peek == '.') {
 					if (peek == 'e' || peek == 'E') {
 						get();
@@ -976,506 +1383,688 @@ final class PEGParser {
 					}
 					get();
 				}
-				return new Token(TokenType.CodeSnippetNumber, tokenStartPosition, currentPosition - tokenStartPosition,
-						syntaxHighlightingConstants.codeNumberTextAttribute, null);
+				return addToken(TokenType.CodeSnippetNumber, tokenStartPosition);
 			}
 			switch (peek) {
 			case '$':
 				get();
 				if (peek == '$' || peek == '_' || peek == '?') {
 					get();
-					return new Token(TokenType.CodeSnippetSubstitution, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.substitutionTextAttribute,
-							null);
+					return addToken(TokenType.CodeSnippetSubstitution, tokenStartPosition);
 				}
-				return new Token(TokenType.CodeSnippetUnknown, tokenStartPosition, currentPosition - tokenStartPosition,
-						syntaxHighlightingConstants.codeUnknownTextAttribute, null);
+				return addToken(TokenType.CodeSnippetUnknown, tokenStartPosition);
 			case '\'':
 			case '\"':
 				return parseCodeStringOrChar(false, tokenStartPosition);
 			case '{':
 				codeNestDepth++;
 				get();
-				return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-						currentPosition - tokenStartPosition, syntaxHighlightingConstants.codePunctuatorTextAttribute,
-						null);
+				return addToken(TokenType.CodeSnippetPunctuator, tokenStartPosition);
 			case '}':
 				codeNestDepth--;
 				get();
-				if (codeNestDepth == 0)
-					return new Token(TokenType.CodeSnippetEnd, tokenStartPosition, currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.codeTextAttribute, null);
-				return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-						currentPosition - tokenStartPosition, syntaxHighlightingConstants.codePunctuatorTextAttribute,
-						null);
-			case '[':
-			case ']':
-			case '(':
-			case ')':
-			case ',':
-			case ';':
-			case '?':
-			case '~':
-				get();
-				return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-						currentPosition - tokenStartPosition, syntaxHighlightingConstants.codePunctuatorTextAttribute,
-						null);
-			case '<':
-				get();
-				if (peek == ':') {
-					get();
-					if (peek == ':') {
-						get();
-						if (peek == ':' || peek == '>') {
-							backup(':');
-							return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-									currentPosition - tokenStartPosition,
-									syntaxHighlightingConstants.codePunctuatorTextAttribute, null);
-						}
-						backup(':');
-						backup(':');
-						return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-								currentPosition - tokenStartPosition,
-								syntaxHighlightingConstants.codePunctuatorTextAttribute, null);
-					}
-					return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-							currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.codePunctuatorTextAttribute, null);
-				}
-				if (peek == '%') {
-					get();
-					return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-							currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.codePunctuatorTextAttribute, null);
-				}
-				if (peek == '<') {
-					get();
-					if (peek == '=') {
-						get();
-						return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-								currentPosition - tokenStartPosition,
-								syntaxHighlightingConstants.codePunctuatorTextAttribute, null);
-					}
-					return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-							currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.codePunctuatorTextAttribute, null);
-				}
-				if (peek == '=') {
-					get();
-					return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-							currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.codePunctuatorTextAttribute, null);
-				}
-				return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-						currentPosition - tokenStartPosition, syntaxHighlightingConstants.codePunctuatorTextAttribute,
-						null);
-			case ':':
-				get();
-				if (peek == '>') {
-					get();
-					return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-							currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.codePunctuatorTextAttribute, null);
-				}
-				if (peek == ':') {
-					get();
-					return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-							currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.codePunctuatorTextAttribute, null);
-				}
-				return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-						currentPosition - tokenStartPosition, syntaxHighlightingConstants.codePunctuatorTextAttribute,
-						null);
-			case '%':
-				get();
-				if (peek == '>') {
-					get();
-					return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-							currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.codePunctuatorTextAttribute, null);
-				}
-				if (peek == ':') {
-					get();
-					return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-							currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.codePunctuatorTextAttribute, null);
-				}
-				if (peek == '=') {
-					get();
-					return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-							currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.codePunctuatorTextAttribute, null);
-				}
-				return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-						currentPosition - tokenStartPosition, syntaxHighlightingConstants.codePunctuatorTextAttribute,
-						null);
-			case '+':
-				get();
-				if (peek == '=') {
-					get();
-					return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-							currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.codePunctuatorTextAttribute, null);
-				}
-				if (peek == '+') {
-					get();
-					return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-							currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.codePunctuatorTextAttribute, null);
-				}
-				return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-						currentPosition - tokenStartPosition, syntaxHighlightingConstants.codePunctuatorTextAttribute,
-						null);
-			case '-':
-				get();
-				if (peek == '=') {
-					get();
-					return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-							currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.codePunctuatorTextAttribute, null);
-				}
-				if (peek == '-') {
-					get();
-					return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-							currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.codePunctuatorTextAttribute, null);
-				}
-				if (peek == '>') {
-					get();
-					if (peek == '*') {
-						get();
-						return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-								currentPosition - tokenStartPosition,
-								syntaxHighlightingConstants.codePunctuatorTextAttribute, null);
-					}
-					return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-							currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.codePunctuatorTextAttribute, null);
-				}
-				return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-						currentPosition - tokenStartPosition, syntaxHighlightingConstants.codePunctuatorTextAttribute,
-						null);
-			case '*':
-				get();
-				if (peek == '=') {
-					get();
-					return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-							currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.codePunctuatorTextAttribute, null);
+				if (codeNestDepth == 0) {
+					int endToken = addToken(TokenType.CodeSnippetEnd, tokenStartPosition);
+					addPendingSnippetToCache(endToken);
+					return endToken;
 				}
-				return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-						currentPosition - tokenStartPosition, syntaxHighlightingConstants.codePunctuatorTextAttribute,
-						null);
-			case '^':
-				get();
-				if (peek == '=') {
-					get();
-					return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-							currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.codePunctuatorTextAttribute, null);
+				return addToken(TokenType.CodeSnippetPunctuator, tokenStartPosition);
+			}
+			TokenType type = readPunctuator(CODE_PUNCTUATORS);
+			if (type != null) {
+				final int length = currentPosition - tokenStartPosition;
+				if (peek == ':' && source.regionMatches(tokenStartPosition, length, "<:")) {
+					// <:: is < :: unless it's followed by : or >
+					int next = source.codePointAt(currentPosition + 1);
+					if (next != ':' && next != '>')
+						backup(':');
 				}
-				return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-						currentPosition - tokenStartPosition, syntaxHighlightingConstants.codePunctuatorTextAttribute,
-						null);
-			case '&':
+				return addToken(type, tokenStartPosition);
+			}
+			get();
+			return addToken(TokenType.CodeSnippetUnknown, tokenStartPosition);
+		}
+
+		private int nextGrammarTokenInternal(final int tokenStartPosition) {
+			if (isWhitespace(peek)) {
+				skipTo(source.skipCharacterClass(currentPosition, CHARACTER_CLASSES, WHITESPACE));
+				return addToken(TokenType.Whitespace, tokenStartPosition);
+			}
+			if (isIdentifierStart(peek)) {
+				int hash = 0;
+				do {
+					hash = 31 * hash + get();
+				} while (isIdentifierContinue(peek));
+				final int length = currentPosition - tokenStartPosition;
+				TokenType type = GRAMMAR_KEYWORDS.lookup(source, tokenStartPosition, length, hash);
+				if (type != null)
+					return addToken(type, tokenStartPosition);
+				return addToken(TokenType.Identifier, tokenStartPosition,
+						source.getText(tokenStartPosition, currentPosition));
+			}
+			if (peek == '/' && source.codePointAt(currentPosition + 1) == '*') {
+				skipTo(source.skipPastBlockCommentEnd(currentPosition + 2));
+				return addToken(TokenType.BlockComment, tokenStartPosition);
+			}
+			if (peek == '/' && source.codePointAt(currentPosition + 1) == '/') {
+				skipTo(source.indexOfAny(currentPosition, '\r', '\n'));
+				return addToken(TokenType.LineComment, tokenStartPosition);
+			}
+			switch (peek) {
+			case '{':
+				if (snippetCache != null && readCachedSnippet())
+					return tokens.size() - 1;
 				get();
-				if (peek == '&') {
-					get();
-					return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-							currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.codePunctuatorTextAttribute, null);
-				}
-				if (peek == '=') {
-					get();
-					return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-							currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.codePunctuatorTextAttribute, null);
-				}
-				return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-						currentPosition - tokenStartPosition, syntaxHighlightingConstants.codePunctuatorTextAttribute,
-						null);
-			case '|':
+				codeNestDepth = 1;
+				includeState = IncludeState.StartOfLine;
+				return addToken(TokenType.CodeSnippetStart, tokenStartPosition);
+			case '\"':
 				get();
-				if (peek == '|') {
+				while (true) {
+					skipTo(source.indexOfAny(currentPosition, '\"', '\\', '\r', '\n'));
+					if (peek != '\\')
+						break;
 					get();
-					return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-							currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.codePunctuatorTextAttribute, null);
-				}
-				if (peek == '=') {
+					if (peek == EOF || peek == '\r' || peek == '\n')
+						break;
 					get();
-					return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-							currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.codePunctuatorTextAttribute, null);
 				}
-				return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-						currentPosition - tokenStartPosition, syntaxHighlightingConstants.codePunctuatorTextAttribute,
-						null);
-			case '!':
-				get();
-				if (peek == '=') {
+				if (peek == '\"')
 					get();
-					return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-							currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.codePunctuatorTextAttribute, null);
-				}
-				return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-						currentPosition - tokenStartPosition, syntaxHighlightingConstants.codePunctuatorTextAttribute,
-						null);
-			case '=':
+				return addToken(TokenType.String, tokenStartPosition);
+			case '[':
 				get();
-				if (peek == '=') {
+				while (true) {
+					skipTo(source.indexOfAny(currentPosition, ']', '\\', '\r', '\n'));
+					if (peek != '\\')
+						break;
 					get();
-					return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-							currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.codePunctuatorTextAttribute, null);
-				}
-				return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-						currentPosition - tokenStartPosition, syntaxHighlightingConstants.codePunctuatorTextAttribute,
-						null);
-			case '>':
-				get();
-				if (peek == '>') {
+					if (peek == EOF || peek == '\r' || peek == '\n')
+						break;
 					get();
-					if (peek == '=') {
-						get();
-						return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-								currentPosition - tokenStartPosition,
-								syntaxHighlightingConstants.codePunctuatorTextAttribute, null);
-					}
-					return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-							currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.codePunctuatorTextAttribute, null);
 				}
-				if (peek == '=') {
+				if (peek == ']')
 					get();
-					return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-							currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.codePunctuatorTextAttribute, null);
-				}
-				return new Token(TokenType.CodeSnippetPunctuator, tokenStartPosition,
-						currentPosition - tokenStartPosition, syntaxHighlightingConstants.codePunctuatorTextAttribute,
-						null);
-			default:
-				get();
-				return new Token(TokenType.CodeSnippetUnknown, tokenStartPosition, currentPosition - tokenStartPosition,
-						syntaxHighlightingConstants.codeUnknownTextAttribute, null);
+				return addToken(TokenType.CharacterClass, tokenStartPosition);
 			}
+			TokenType type = readPunctuator(GRAMMAR_PUNCTUATORS);
+			if (type != null)
+				return addToken(type, tokenStartPosition);
+			get();
+			return addToken(TokenType.Unknown, tokenStartPosition);
 		}
 
-		public List<Token> tokenize(IDocument document) {
-			this.document = document;
-			documentLength = document.getLength();
-			currentPosition = 0;
+		private int nextTokenInternal() {
+			if (codeNestDepth > 0)
+				return nextCodeTokenInternal(currentPosition);
+			return nextGrammarTokenInternal(currentPosition);
+		}
+
+		private Checkpoint makeCheckpoint() {
+			return new Checkpoint(currentPosition, tokens.size(), codeNestDepth,
+					codeNestDepth > 0 ? includeState : null);
+		}
+
+		private boolean canCheckpoint() {
+			// the token following a # may still restyle the # token, so we can't restart between them
+			return codeNestDepth == 0 || includeState != IncludeState.GotPound;
+		}
+
+		private void addCheckpointIfNeeded() {
+			if (currentPosition >= nextCheckpointPosition && canCheckpoint()) {
+				checkpoints.add(makeCheckpoint());
+				nextCheckpointPosition = currentPosition + CHECKPOINT_INTERVAL;
+			}
+		}
+
+		private void startAt(CharacterSource source, Checkpoint checkpoint) {
+			this.source = source;
+			currentPosition = checkpoint.offset;
+			codeNestDepth = checkpoint.codeNestDepth;
+			includeState = checkpoint.includeState;
+			lastPoundToken = -1;
+			pendingSnippetStartToken = -1;
 			peek = readCurrentCharacter();
-			final List<Token> tokens = new ArrayList<Token>();
-			while (peek != EOF) {
-				int tokenStartPosition = currentPosition;
-				if (isWhitespace(peek)) {
-					while (isWhitespace(peek)) {
-						get();
-					}
-					tokens.add(new Token(TokenType.Whitespace, tokenStartPosition, currentPosition - tokenStartPosition,
-							null, null));
-					continue;
-				}
-				if (isIdentifierStart(peek)) {
-					StringBuilder valueBuilder = new StringBuilder();
-					do {
-						valueBuilder.appendCodePoint(get());
-					} while (isIdentifierContinue(peek));
-					String value = valueBuilder.toString();
-					if (value.equals("EOF"))
-						tokens.add(new Token(TokenType.EOFKeyword, tokenStartPosition,
-								currentPosition - tokenStartPosition, syntaxHighlightingConstants.keywordTextAttribute,
-								null));
-					else if (value.equals("typedef"))
-						tokens.add(new Token(TokenType.TypedefKeyword, tokenStartPosition,
-								currentPosition - tokenStartPosition, syntaxHighlightingConstants.keywordTextAttribute,
-								null));
-					else if (value.equals("code"))
-						tokens.add(new Token(TokenType.CodeKeyword, tokenStartPosition,
-								currentPosition - tokenStartPosition, syntaxHighlightingConstants.keywordTextAttribute,
-								null));
-					else if (value.equals("namespace"))
-						tokens.add(new Token(TokenType.NamespaceKeyword, tokenStartPosition,
-								currentPosition - tokenStartPosition, syntaxHighlightingConstants.keywordTextAttribute,
-								null));
-					else if (value.equals("false"))
-						tokens.add(new Token(TokenType.FalseKeyword, tokenStartPosition,
-								currentPosition - tokenStartPosition, syntaxHighlightingConstants.keywordTextAttribute,
-								null));
-					else if (value.equals("true"))
-						tokens.add(new Token(TokenType.TrueKeyword, tokenStartPosition,
-								currentPosition - tokenStartPosition, syntaxHighlightingConstants.keywordTextAttribute,
-								null));
-					else
-						tokens.add(new Token(TokenType.Identifier, tokenStartPosition,
-								currentPosition - tokenStartPosition,
-								syntaxHighlightingConstants.identifierTextAttribute, value));
+			nextCheckpointPosition = currentPosition + CHECKPOINT_INTERVAL;
+		}
 
-					continue;
+		public List<Checkpoint> getCheckpoints() {
+			return checkpoints;
+		}
+
+		public TokenBuffer getTokens() {
+			return tokens;
+		}
+
+		/**
+		 * start lexing grammar text at offset, one token at a time with
+		 * {@link #nextToken()}. Only the tokens of the current code snippet
+		 * are kept.
+		 */
+		public void startStreaming(IDocument document, int offset) {
+			tokens = new TokenBuffer();
+			checkpoints = null;
+			startAt(new CharacterSource(document), new Checkpoint(offset, 0, 0, null));
+		}
+
+		/**
+		 * @return the index in {@link #getTokens()} of the next token, or -1
+		 *         at the end of the document
+		 */
+		public int nextToken() {
+			if (peek == EOF)
+				return -1;
+			if (codeNestDepth == 0)
+				tokens.clear();
+			return nextTokenInternal();
+		}
+
+		private int addToken(TokenType type, int tokenStartPosition) {
+			return tokens.add(type, tokenStartPosition, currentPosition - tokenStartPosition, null);
+		}
+
+		private int addToken(TokenType type, int tokenStartPosition, String value) {
+			return tokens.add(type, tokenStartPosition, currentPosition - tokenStartPosition, value);
+		}
+
+		public TokenBuffer tokenize(IDocument document) {
+			return tokenize(new CharacterSource(document));
+		}
+
+		public TokenBuffer tokenize(CharacterSource source) {
+			tokens = new TokenBuffer();
+			checkpoints = new ArrayList<Checkpoint>();
+			Checkpoint initialCheckpoint = new Checkpoint(0, 0, 0, null);
+			checkpoints.add(initialCheckpoint);
+			startAt(source, initialCheckpoint);
+			while (peek != EOF) {
+				addCheckpointIfNeeded();
+				nextTokenInternal();
+			}
+			addToken(TokenType.EndOfFile, currentPosition);
+			return tokens;
+		}
+
+		/**
+		 * lex document from start, which must be in grammar text, to the first
+		 * token boundary at or after end, where an EndOfFile token is added
+		 */
+		public TokenBuffer tokenizeRegion(IDocument document, int start, int end) {
+			tokens = new TokenBuffer();
+			checkpoints = new ArrayList<Checkpoint>();
+			Checkpoint initialCheckpoint = new Checkpoint(start, 0, 0, null);
+			checkpoints.add(initialCheckpoint);
+			startAt(new CharacterSource(document), initialCheckpoint);
+			while (peek != EOF && currentPosition < end) {
+				addCheckpointIfNeeded();
+				nextTokenInternal();
+			}
+			addToken(TokenType.EndOfFile, currentPosition);
+			return tokens;
+		}
+
+		/**
+		 * the token runs of recently lexed code snippets, keyed by their text
+		 * and starting state, so a snippet that hasn't changed doesn't need to
+		 * be lexed again. The least recently used snippets are dropped once
+		 * the cached snippets add up to {@link #MAX_CACHED_CHARACTERS}.
+		 */
+		static final class SnippetCache {
+			/**
+			 * snippets shorter than this are quicker to lex than to look up
+			 */
+			public static final int MIN_CACHED_SNIPPET_LENGTH = 64;
+			/**
+			 * longer snippets aren't cached, so looking for the end of an
+			 * unbalanced snippet doesn't scan the rest of the document
+			 */
+			public static final int MAX_CACHED_SNIPPET_LENGTH = 64 << 10;
+			private static final int MAX_CACHED_CHARACTERS = 1 << 20;
+
+			private static final class Entry {
+				public final char[] text;
+				public final TokenBuffer tokens;
+
+				public Entry(char[] text, TokenBuffer tokens) {
+					this.text = text;
+					this.tokens = tokens;
 				}
-				switch (peek) {
-				case '/':
-					get();
-					if (peek == '*') {
-						get();
-						boolean wasLastStar = false;
-						while (peek != EOF) {
-							if (peek == '/' && wasLastStar) {
-								get();
-								break;
-							}
-							wasLastStar = get() == '*';
-						}
-						tokens.add(new Token(TokenType.BlockComment, tokenStartPosition,
-								currentPosition - tokenStartPosition,
-								syntaxHighlightingConstants.blockCommentTextAttribute, null));
-						continue;
-					}
-					if (peek == '/') {
-						while (peek != '\r' && peek != '\n' && peek != EOF) {
-							get();
-						}
-						tokens.add(new Token(TokenType.LineComment, tokenStartPosition,
-								currentPosition - tokenStartPosition,
-								syntaxHighlightingConstants.lineCommentTextAttribute, null));
-						continue;
-					}
-					tokens.add(new Token(TokenType.FSlash, tokenStartPosition, currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.operatorTextAttribute, null));
-					continue;
-				case '{':
-					get();
-					codeNestDepth = 1;
-					includeState = IncludeState.StartOfLine;
-					tokens.add(new Token(TokenType.CodeSnippetStart, tokenStartPosition,
-							currentPosition - tokenStartPosition, syntaxHighlightingConstants.codeTextAttribute, null));
-					while (codeNestDepth > 0 && peek != EOF) {
-						tokens.add(nextCodeTokenInternal(currentPosition));
-					}
-					continue;
-				case '\"':
-					get();
-					while (peek != EOF && peek != '\"' && peek != '\r' && peek != '\n') {
-						if (peek == '\\') {
-							get();
-							if (peek == EOF || peek == '\r' || peek == '\n')
-								break;
-							get();
-						} else {
-							get();
-						}
-					}
-					if (peek == '\"')
-						get();
-					tokens.add(new Token(TokenType.String, tokenStartPosition, currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.stringTextAttribute, null));
-					continue;
-				case '[':
-					get();
-					while (peek != EOF && peek != ']' && peek != '\r' && peek != '\n') {
-						if (peek == '\\') {
-							get();
-							if (peek == EOF || peek == '\r' || peek == '\n')
-								break;
-							get();
-						} else {
-							get();
-						}
-					}
-					if (peek == ']')
-						get();
-					tokens.add(new Token(TokenType.CharacterClass, tokenStartPosition,
-							currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.characterClassTextAttribute, null));
-					continue;
-				case ';':
-					get();
-					tokens.add(new Token(TokenType.Semicolon, tokenStartPosition, currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.operatorTextAttribute, null));
-					continue;
-				case '?':
-					get();
-					tokens.add(new Token(TokenType.QMark, tokenStartPosition, currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.operatorTextAttribute, null));
-					continue;
-				case '+':
-					get();
-					tokens.add(new Token(TokenType.Plus, tokenStartPosition, currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.operatorTextAttribute, null));
-					continue;
-				case '!':
-					get();
-					tokens.add(new Token(TokenType.EMark, tokenStartPosition, currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.operatorTextAttribute, null));
-					continue;
-				case '*':
-					get();
-					tokens.add(new Token(TokenType.Star, tokenStartPosition, currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.operatorTextAttribute, null));
-					continue;
-				case '=':
-					get();
-					tokens.add(new Token(TokenType.Equal, tokenStartPosition, currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.operatorTextAttribute, null));
-					continue;
-				case '(':
-					get();
-					tokens.add(new Token(TokenType.LParen, tokenStartPosition, currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.operatorTextAttribute, null));
-					continue;
-				case ')':
-					get();
-					tokens.add(new Token(TokenType.RParen, tokenStartPosition, currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.operatorTextAttribute, null));
-					continue;
-				case '&':
-					get();
-					tokens.add(new Token(TokenType.Amp, tokenStartPosition, currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.operatorTextAttribute, null));
-					continue;
-				case '<':
-					get();
-					tokens.add(new Token(TokenType.LAngle, tokenStartPosition, currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.operatorTextAttribute, null));
-					continue;
-				case '>':
-					get();
-					tokens.add(new Token(TokenType.RAngle, tokenStartPosition, currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.operatorTextAttribute, null));
+			}
+
+			private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+			private int cachedCharacters = 0;
+
+			/**
+			 * @return the tokens of the snippet with the given key whose text
+			 *         is at [start, end) in source, with offsets relative to
+			 *         start, or null if it isn't cached
+			 */
+			public TokenBuffer get(long key, CharacterSource source, int start, int end) {
+				Entry entry = entries.get(key);
+				if (entry == null || !source.regionMatches(start, end - start, entry.text))
+					return null;
+				return entry.tokens;
+			}
+
+			public void put(long key, char[] text, TokenBuffer tokens) {
+				Entry oldEntry = entries.put(key, new Entry(text, tokens));
+				if (oldEntry != null)
+					cachedCharacters -= oldEntry.text.length;
+				cachedCharacters += text.length;
+				Iterator<Entry> iterator = entries.values().iterator();
+				while (cachedCharacters > MAX_CACHED_CHARACTERS && iterator.hasNext()) {
+					cachedCharacters -= iterator.next().text.length;
+					iterator.remove();
+				}
+			}
+		}
+
+		/**
+		 * a piece of a document lexed on its own, guessing that it starts in
+		 * grammar text. Lexing stops at the first token boundary at or after
+		 * limit.
+		 */
+		private static final class Chunk extends RecursiveAction {
+			private static final long serialVersionUID = 1L;
+
+			private final char[] text;
+			public final int start;
+			public final int limit;
+			public TokenBuffer tokens;
+			public List<Checkpoint> checkpoints;
+			public int endPosition;
+			public int endCodeNestDepth;
+			public IncludeState endIncludeState;
+			public int endLastPoundToken;
+
+			public Chunk(char[] text, int start, int limit) {
+				this.text = text;
+				this.start = start;
+				this.limit = limit;
+			}
+
+			@Override
+			protected void compute() {
+				Tokenizer tokenizer = new Tokenizer();
+				tokenizer.tokens = new TokenBuffer();
+				tokenizer.checkpoints = new ArrayList<Checkpoint>();
+				Checkpoint initialCheckpoint = new Checkpoint(start, 0, 0, null);
+				tokenizer.checkpoints.add(initialCheckpoint);
+				tokenizer.startAt(new CharacterSource(text), initialCheckpoint);
+				while (tokenizer.peek != EOF && tokenizer.currentPosition < limit) {
+					tokenizer.addCheckpointIfNeeded();
+					tokenizer.nextTokenInternal();
+				}
+				tokens = tokenizer.tokens;
+				checkpoints = tokenizer.checkpoints;
+				endPosition = tokenizer.currentPosition;
+				endCodeNestDepth = tokenizer.codeNestDepth;
+				endIncludeState = tokenizer.includeState;
+				endLastPoundToken = tokenizer.lastPoundToken;
+			}
+		}
+
+		/**
+		 * how far past the planned end of a chunk we look for a line that
+		 * looks like the start of a grammar rule
+		 */
+		private static final int MAX_CHUNK_BOUNDARY_SEARCH = 1 << 16;
+
+		/**
+		 * @return a line start at or after position that is probably in
+		 *         grammar text: preferably the start of a line that begins
+		 *         with a letter and follows a line ending in ';'
+		 */
+		private static int guessChunkBoundary(char[] text, int position) {
+			int searchEnd = Math.min(text.length, position + MAX_CHUNK_BOUNDARY_SEARCH);
+			int firstLineStart = -1;
+			for (int i = position; i < searchEnd; i++) {
+				if (text[i] != '\n')
 					continue;
-				case ',':
-					get();
-					tokens.add(new Token(TokenType.Comma, tokenStartPosition, currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.operatorTextAttribute, null));
+				if (firstLineStart < 0)
+					firstLineStart = i + 1;
+				if (i + 1 >= text.length || !isIdentifierStart(text[i + 1]))
 					continue;
-				case ':':
-					get();
-					if (peek == ':') {
-						get();
-						tokens.add(new Token(TokenType.ColonColon, tokenStartPosition,
-								currentPosition - tokenStartPosition, syntaxHighlightingConstants.operatorTextAttribute,
-								null));
-						continue;
+				int lastCharacter = i - 1;
+				while (lastCharacter >= position && isWhitespace(text[lastCharacter]))
+					lastCharacter--;
+				if (lastCharacter >= position && text[lastCharacter] == ';')
+					return i + 1;
+			}
+			if (firstLineStart >= 0)
+				return firstLineStart;
+			return position;
+		}
+
+		/**
+		 * lex document by splitting it into chunks of about chunkSize
+		 * characters and lexing them in parallel. The chunks are then joined
+		 * in order; where a chunk's guessed starting state was wrong, it is
+		 * re-lexed from the real state until it reaches one of the chunk's
+		 * checkpoints with the same state, the same way
+		 * {@link #retokenize(IDocument, TokenBuffer, List, int, int, int)}
+		 * catches up with the old tokens.
+		 */
+		public TokenBuffer tokenizeParallel(IDocument document, ForkJoinPool pool, int chunkSize) {
+			return tokenizeParallel(document.get().toCharArray(), pool, chunkSize);
+		}
+
+		public TokenBuffer tokenizeParallel(final char[] text, ForkJoinPool pool, int chunkSize) {
+			final List<Chunk> chunks = new ArrayList<Chunk>();
+			int chunkStart = 0;
+			do {
+				int chunkEnd = text.length;
+				if (text.length - chunkStart > chunkSize + chunkSize / 2)
+					chunkEnd = guessChunkBoundary(text, chunkStart + chunkSize);
+				chunks.add(new Chunk(text, chunkStart, chunkEnd));
+				chunkStart = chunkEnd;
+			} while (chunkStart < text.length);
+			pool.invoke(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute() {
+					invokeAll(chunks);
+				}
+			});
+			int tokenCount = 0;
+			for (Chunk chunk : chunks)
+				tokenCount += chunk.tokens.size();
+			tokens = new TokenBuffer(tokenCount + 1);
+			checkpoints = new ArrayList<Checkpoint>();
+			startAt(new CharacterSource(text), new Checkpoint(0, 0, 0, null));
+			for (Chunk chunk : chunks) {
+				int syncIndex = 0;
+				while (true) {
+					while (syncIndex < chunk.checkpoints.size()
+							&& chunk.checkpoints.get(syncIndex).offset < currentPosition)
+						syncIndex++;
+					if (syncIndex < chunk.checkpoints.size()
+							&& chunk.checkpoints.get(syncIndex).offset == currentPosition
+							&& chunk.checkpoints.get(syncIndex).hasSameState(codeNestDepth,
+									codeNestDepth > 0 ? includeState : null)) {
+						// the rest of the chunk was lexed from the right state
+						Checkpoint syncCheckpoint = chunk.checkpoints.get(syncIndex);
+						int tokenIndexDelta = tokens.size() - syncCheckpoint.tokenIndex;
+						tokens.addAll(chunk.tokens, syncCheckpoint.tokenIndex, chunk.tokens.size(), 0);
+						for (Checkpoint checkpoint : chunk.checkpoints.subList(syncIndex, chunk.checkpoints.size()))
+							checkpoints.add(checkpoint.moved(0, tokenIndexDelta));
+						currentPosition = chunk.endPosition;
+						codeNestDepth = chunk.endCodeNestDepth;
+						includeState = chunk.endIncludeState;
+						lastPoundToken = chunk.endLastPoundToken < 0 ? -1 : chunk.endLastPoundToken + tokenIndexDelta;
+						peek = readCurrentCharacter();
+						nextCheckpointPosition = currentPosition + CHECKPOINT_INTERVAL;
+						break;
 					}
-					tokens.add(new Token(TokenType.Colon, tokenStartPosition, currentPosition - tokenStartPosition,
-							syntaxHighlightingConstants.operatorTextAttribute, null));
-					continue;
+					if (peek == EOF || currentPosition >= chunk.limit)
+						break;
+					addCheckpointIfNeeded();
+					nextTokenInternal();
 				}
-				get();
-				tokens.add(new Token(TokenType.Unknown, tokenStartPosition, currentPosition - tokenStartPosition, null,
-						null));
 			}
-			tokens.add(new Token(TokenType.EndOfFile, currentPosition, 0, null, null));
+			while (peek != EOF) {
+				addCheckpointIfNeeded();
+				nextTokenInternal();
+			}
+			addToken(TokenType.EndOfFile, currentPosition);
 			return tokens;
 		}
+
+		/**
+		 * re-lex document after an edit, reusing the tokens from the previous
+		 * run that can't have changed.
+		 * 
+		 * @param document
+		 *            the edited document
+		 * @param oldTokens
+		 *            the tokens from the previous run
+		 * @param oldCheckpoints
+		 *            the checkpoints from the previous run
+		 * @param changeStart
+		 *            the start of the changed text
+		 * @param oldChangeEnd
+		 *            the end of the changed text before the edit
+		 * @param newChangeEnd
+		 *            the end of the changed text after the edit
+		 * @return the new tokens
+		 */
+		public TokenBuffer retokenize(IDocument document, TokenBuffer oldTokens, List<Checkpoint> oldCheckpoints,
+				int changeStart, int oldChangeEnd, int newChangeEnd) {
+			final int delta = newChangeEnd - oldChangeEnd;
+			int restartIndex = 0;
+			while (restartIndex + 1 < oldCheckpoints.size()
+					&& oldCheckpoints.get(restartIndex + 1).offset + MAX_LOOKAHEAD <= changeStart)
+				restartIndex++;
+			Checkpoint restartCheckpoint = oldCheckpoints.get(restartIndex);
+			firstRelexedToken = restartCheckpoint.tokenIndex;
+			tokens = new TokenBuffer(oldTokens.size());
+			tokens.addAll(oldTokens, 0, restartCheckpoint.tokenIndex, 0);
+			checkpoints = new ArrayList<Checkpoint>(oldCheckpoints.subList(0, restartIndex + 1));
+			startAt(new CharacterSource(document), restartCheckpoint);
+			int syncIndex = restartIndex + 1;
+			while (syncIndex < oldCheckpoints.size() && oldCheckpoints.get(syncIndex).offset < oldChangeEnd)
+				syncIndex++;
+			while (peek != EOF) {
+				while (syncIndex < oldCheckpoints.size()
+						&& oldCheckpoints.get(syncIndex).offset + delta < currentPosition)
+					syncIndex++;
+				if (syncIndex < oldCheckpoints.size() && oldCheckpoints.get(syncIndex).offset + delta == currentPosition
+						&& oldCheckpoints.get(syncIndex).hasSameState(codeNestDepth,
+								codeNestDepth > 0 ? includeState : null)) {
+					// caught up with the old token stream: the rest is the same, just moved
+					Checkpoint syncCheckpoint = oldCheckpoints.get(syncIndex);
+					int tokenIndexDelta = tokens.size() - syncCheckpoint.tokenIndex;
+					firstReusedToken = tokens.size();
+					reusedTokenIndexDelta = tokenIndexDelta;
+					tokens.addAll(oldTokens, syncCheckpoint.tokenIndex, oldTokens.size(), delta);
+					for (Checkpoint checkpoint : oldCheckpoints.subList(syncIndex, oldCheckpoints.size()))
+						checkpoints.add(checkpoint.moved(delta, tokenIndexDelta));
+					return tokens;
+				}
+				addCheckpointIfNeeded();
+				nextTokenInternal();
+			}
+			firstReusedToken = addToken(TokenType.EndOfFile, currentPosition);
+			reusedTokenIndexDelta = firstReusedToken - (oldTokens.size() - 1);
+			return tokens;
+		}
+
+		/**
+		 * @return the index of the first token lexed again by the last call
+		 *         to {@link #retokenize}; the tokens before it are the same as
+		 *         the old tokens
+		 */
+		public int getFirstRelexedToken() {
+			return firstRelexedToken;
+		}
+
+		/**
+		 * @return the index of the first token copied from the old tokens
+		 *         after the edit by the last call to {@link #retokenize}; it
+		 *         and the tokens after it are the same as the old tokens at
+		 *         their index minus {@link #getReusedTokenIndexDelta()}, except
+		 *         for their offsets. The EndOfFile token always counts as
+		 *         reused.
+		 */
+		public int getFirstReusedToken() {
+			return firstReusedToken;
+		}
+
+		public int getReusedTokenIndexDelta() {
+			return reusedTokenIndexDelta;
+		}
+	}
+
+	/**
+	 * how a token buffer differs from an older one: the tokens before
+	 * firstRelexedToken are the same as the old ones, and the tokens from
+	 * firstReusedToken on are the old tokens moved by reusedTokenIndexDelta,
+	 * except for their offsets
+	 */
+	private static final class TokenChange {
+		public final int firstRelexedToken;
+		public final int firstReusedToken;
+		public final int reusedTokenIndexDelta;
+
+		public TokenChange(int firstRelexedToken, int firstReusedToken, int reusedTokenIndexDelta) {
+			this.firstRelexedToken = firstRelexedToken;
+			this.firstReusedToken = firstReusedToken;
+			this.reusedTokenIndexDelta = reusedTokenIndexDelta;
+		}
+
+		public TokenChange(Tokenizer tokenizer) {
+			this(tokenizer.getFirstRelexedToken(), tokenizer.getFirstReusedToken(),
+					tokenizer.getReusedTokenIndexDelta());
+		}
+
+		/**
+		 * @return how the new tokens of next differ from the old tokens of
+		 *         this, where the old tokens of next are the new tokens of
+		 *         this
+		 */
+		public TokenChange followedBy(TokenChange next) {
+			return new TokenChange(Math.min(firstRelexedToken, next.firstRelexedToken),
+					Math.max(next.firstReusedToken, firstReusedToken + next.reusedTokenIndexDelta),
+					reusedTokenIndexDelta + next.reusedTokenIndexDelta);
+		}
 	}
 
+	/**
+	 * a node of the syntax tree. Nodes never change once they're built, and
+	 * the token indexes in a node are relative to the first token of the
+	 * top-level item it's in, so a node can be shared between the trees of
+	 * different versions of a document as long as its item's tokens don't
+	 * change.
+	 */
+	static final class SyntaxNode {
+		enum Kind {
+			Rule, Typedef, CodeBlock, Namespace, TemplateParameters, TemplateArguments, Expression, Sequence,
+			CodeSnippet
+		}
+
+		private static final int[] NO_STYLED_TOKENS = new int[0];
+		private static final byte[] NO_TOKEN_STYLES = new byte[0];
+		private static final SyntaxNode[] NO_CHILDREN = new SyntaxNode[0];
+
+		public final Kind kind;
+		/**
+		 * the first token in this node, relative to the start of its item
+		 */
+		public final int start;
+		/**
+		 * the token after the last token in this node, relative to the start
+		 * of its item
+		 */
+		public final int end;
+		private final int[] styledTokens;
+		private final byte[] tokenStyles;
+		private final SyntaxNode[] children;
+
+		SyntaxNode(Kind kind, int start, int end, int[] styledTokens, byte[] tokenStyles, SyntaxNode[] children) {
+			this.kind = kind;
+			this.start = start;
+			this.end = end;
+			this.styledTokens = styledTokens.length == 0 ? NO_STYLED_TOKENS : styledTokens;
+			this.tokenStyles = tokenStyles.length == 0 ? NO_TOKEN_STYLES : tokenStyles;
+			this.children = children.length == 0 ? NO_CHILDREN : children;
+		}
+
+		public int getChildCount() {
+			return children.length;
+		}
+
+		public SyntaxNode getChild(int index) {
+			return children[index];
+		}
+
+		/**
+		 * @return the number of tokens in this node, not counting its
+		 *         children, that have a semantic style
+		 */
+		public int getStyledTokenCount() {
+			return styledTokens.length;
+		}
+
+		/**
+		 * @return the index, relative to the start of its item, of a token
+		 *         with a semantic style
+		 */
+		public int getStyledToken(int index) {
+			return styledTokens[index];
+		}
+
+		public byte getTokenStyle(int index) {
+			return tokenStyles[index];
+		}
+
+		/**
+		 * @return the first token directly in this node with style, relative
+		 *         to the start of its item, or -1 if there isn't one
+		 */
+		public int findStyledToken(byte style) {
+			for (int i = 0; i < styledTokens.length; i++)
+				if (tokenStyles[i] == style)
+					return styledTokens[i];
+			return -1;
+		}
+
+		/**
+		 * @return the first child of kind, or null if there isn't one
+		 */
+		public SyntaxNode findChild(Kind kind) {
+			for (SyntaxNode child : children)
+				if (child.kind == kind)
+					return child;
+			return null;
+		}
+
+		/**
+		 * write the semantic styles of this node and its children into styles
+		 * 
+		 * @param itemStart
+		 *            the index of the first token of this node's item
+		 */
+		public void applyStyles(byte[] styles, int itemStart) {
+			// nodes can be nested arbitrarily deep, so don't recurse
+			SyntaxNode[] stack = new SyntaxNode[16];
+			int stackSize = 0;
+			stack[stackSize++] = this;
+			while (stackSize > 0) {
+				SyntaxNode node = stack[--stackSize];
+				for (int i = 0; i < node.styledTokens.length; i++)
+					styles[itemStart + node.styledTokens[i]] = node.tokenStyles[i];
+				if (stackSize + node.children.length > stack.length)
+					stack = Arrays.copyOf(stack, Math.max(stack.length * 2, stackSize + node.children.length));
+				for (int i = node.children.length - 1; i >= 0; i--)
+					stack[stackSize++] = node.children[i];
+			}
+		}
+	}
+
+	/**
+	 * reads the grammar tokens and builds syntax nodes out of them. Every
+	 * style set between {@link #startNode()} and {@link #finishNode} goes in
+	 * the node, and finished nodes become the children of the node that's
+	 * still open.
+	 */
 	private static class TokenSource {
-		private final Iterator<Token> tokenIterator;
-		public Token peek;
+		private final TokenBuffer tokens;
+		public int peek;
+		public TokenType peekType;
+		private int lastToken = -1;
+		private int itemStart;
+		/**
+		 * a (start token, styled token count, child count) triple for every
+		 * open node
+		 */
+		private int[] nodeStack = new int[3 * 16];
+		private int nodeStackSize = 0;
+		private int[] styledTokens = new int[64];
+		private byte[] tokenStyles = new byte[64];
+		private int styledTokenCount = 0;
+		private SyntaxNode[] children = new SyntaxNode[16];
+		private int childCount = 0;
 
 		private static boolean isSkippedTokenType(TokenType type) {
 			switch (type) {
@@ -1527,287 +2116,424 @@ final class PEGParser {
 			return false;
 		}
 
-		public TokenSource(Iterator<Token> tokenIterator) {
-			this.tokenIterator = tokenIterator;
-			peek = tokenIterator.next();
-			while (isSkippedTokenType(peek.type))
-				peek = tokenIterator.next();
+		public TokenSource(TokenBuffer tokens) {
+			this(tokens, 0);
+		}
+
+		/**
+		 * @param start
+		 *            the index of the first token to read, which must not be
+		 *            a skipped token unless it's 0
+		 */
+		public TokenSource(TokenBuffer tokens, int start) {
+			this.tokens = tokens;
+			peek = start - 1;
+			advance();
 		}
 
-		public Token get() {
-			Token retval = peek;
-			if (!peek.isEOF())
-				peek = tokenIterator.next();
-			while (isSkippedTokenType(peek.type))
-				peek = tokenIterator.next();
+		private void advance() {
+			do {
+				peek++;
+				peekType = tokens.getType(peek);
+			} while (isSkippedTokenType(peekType));
+		}
+
+		/**
+		 * @return the index of the current token
+		 */
+		public int get() {
+			int retval = peek;
+			lastToken = retval;
+			if (peekType != TokenType.EndOfFile)
+				advance();
 			return retval;
 		}
+
+		public TokenType getType(int index) {
+			return tokens.getType(index);
+		}
+
+		public String getValue(int index) {
+			return tokens.getValue(index);
+		}
+
+		public void setStyle(int index, byte style) {
+			if (styledTokenCount == styledTokens.length) {
+				styledTokens = Arrays.copyOf(styledTokens, styledTokenCount * 2);
+				tokenStyles = Arrays.copyOf(tokenStyles, styledTokenCount * 2);
+			}
+			styledTokens[styledTokenCount] = index - itemStart;
+			tokenStyles[styledTokenCount++] = style;
+		}
+
+		/**
+		 * start the node for a top-level item at the current token
+		 */
+		public void startItem() {
+			Assert.isTrue(nodeStackSize == 0);
+			itemStart = peek;
+			startNode();
+		}
+
+		public void startNode() {
+			if (nodeStackSize == nodeStack.length)
+				nodeStack = Arrays.copyOf(nodeStack, nodeStackSize * 2);
+			nodeStack[nodeStackSize++] = peek - itemStart;
+			nodeStack[nodeStackSize++] = styledTokenCount;
+			nodeStack[nodeStackSize++] = childCount;
+		}
+
+		/**
+		 * finish the node started by the matching {@link #startNode()}, which
+		 * holds the tokens read since then
+		 */
+		public SyntaxNode finishNode(SyntaxNode.Kind kind) {
+			int firstChild = nodeStack[--nodeStackSize];
+			int firstStyledToken = nodeStack[--nodeStackSize];
+			int start = nodeStack[--nodeStackSize];
+			SyntaxNode node = new SyntaxNode(kind, start, Math.max(start, lastToken + 1 - itemStart),
+					Arrays.copyOfRange(styledTokens, firstStyledToken, styledTokenCount),
+					Arrays.copyOfRange(tokenStyles, firstStyledToken, styledTokenCount),
+					Arrays.copyOfRange(children, firstChild, childCount));
+			styledTokenCount = firstStyledToken;
+			Arrays.fill(children, firstChild, childCount, null);
+			childCount = firstChild;
+			if (nodeStackSize > 0) {
+				if (childCount == children.length)
+					children = Arrays.copyOf(children, childCount * 2);
+				children[childCount++] = node;
+			}
+			return node;
+		}
 	}
 
 	private void skipTillGrammarStart(final TokenSource ts) {
-		while (!ts.peek.isEOF() && ts.peek.type != TokenType.TypedefKeyword && ts.peek.type != TokenType.Identifier
-				&& ts.peek.type != TokenType.CodeKeyword && ts.peek.type != TokenType.NamespaceKeyword) {
-			if (ts.get().type == TokenType.Semicolon)
+		while (ts.peekType != TokenType.EndOfFile && ts.peekType != TokenType.TypedefKeyword
+				&& ts.peekType != TokenType.Identifier && ts.peekType != TokenType.CodeKeyword
+				&& ts.peekType != TokenType.NamespaceKeyword) {
+			if (ts.getType(ts.get()) == TokenType.Semicolon)
 				return;
 		}
 	}
 
 	private void parseType(final TokenSource ts) {
-		Assert.isTrue(ts.peek.type == TokenType.TypedefKeyword);
+		Assert.isTrue(ts.peekType == TokenType.TypedefKeyword);
 		ts.get();
-		if (ts.peek.type == TokenType.ColonColon) {
-			ts.get().style = syntaxHighlightingConstants.codePunctuatorTextAttribute;
+		if (ts.peekType == TokenType.ColonColon) {
+			ts.setStyle(ts.get(), PEGSyntaxHighlightingConstants.CODE_PUNCTUATOR_ID);
 		}
-		if (ts.peek.type != TokenType.Identifier) {
+		if (ts.peekType != TokenType.Identifier) {
 			skipTillGrammarStart(ts);
 			return;
 		}
-		ts.get().style = syntaxHighlightingConstants.codeIdentifierTextAttribute;
-		while (ts.peek.type == TokenType.ColonColon) {
-			ts.get().style = syntaxHighlightingConstants.codePunctuatorTextAttribute;
-			if (ts.peek.type != TokenType.Identifier) {
+		ts.setStyle(ts.get(), PEGSyntaxHighlightingConstants.CODE_IDENTIFIER_ID);
+		while (ts.peekType == TokenType.ColonColon) {
+			ts.setStyle(ts.get(), PEGSyntaxHighlightingConstants.CODE_PUNCTUATOR_ID);
+			if (ts.peekType != TokenType.Identifier) {
 				skipTillGrammarStart(ts);
 				return;
 			}
-			ts.get().style = syntaxHighlightingConstants.codeIdentifierTextAttribute;
+			ts.setStyle(ts.get(), PEGSyntaxHighlightingConstants.CODE_IDENTIFIER_ID);
 		}
-		if (ts.peek.type != TokenType.Identifier) {
+		if (ts.peekType != TokenType.Identifier) {
 			skipTillGrammarStart(ts);
 			return;
 		}
-		ts.get().style = syntaxHighlightingConstants.typeNameTextAttribute;
+		ts.setStyle(ts.get(), PEGSyntaxHighlightingConstants.TYPE_NAME_ID);
 		skipTillGrammarStart(ts);
 	}
 
 	private void parseTopLevelCodeSnippet(TokenSource ts) {
-		Assert.isTrue(ts.peek.type == TokenType.CodeKeyword);
+		Assert.isTrue(ts.peekType == TokenType.CodeKeyword);
 		ts.get();
-		if (ts.peek.type != TokenType.Identifier) {
+		if (ts.peekType != TokenType.Identifier) {
 			skipTillGrammarStart(ts);
 			return;
 		}
-		if (ts.peek.value.equals("license") || ts.peek.value.equals("header") || ts.peek.value.equals("source")
-				|| ts.peek.value.equals("class")) {
-			ts.peek.style = syntaxHighlightingConstants.keywordTextAttribute;
+		String name = ts.getValue(ts.peek);
+		if (name.equals("license") || name.equals("header") || name.equals("source") || name.equals("class")) {
+			ts.setStyle(ts.peek, PEGSyntaxHighlightingConstants.KEYWORD_ID);
 		}
 		ts.get();
 		skipTillGrammarStart(ts);
 	}
 
-	private boolean parsePrimaryExpression(TokenSource ts, boolean codeAllowed) {
-		switch (ts.peek.type) {
-		case LParen:
+	private boolean parseTemplateArguments(TokenSource ts) {
+		Assert.isTrue(ts.peekType == TokenType.LAngle);
+		do {
 			ts.get();
-			if (ts.peek.type == TokenType.RParen) {
+			if (ts.peekType == TokenType.TrueKeyword || ts.peekType == TokenType.FalseKeyword) {
 				ts.get();
-				return true;
-			}
-			if (!parseExpression(ts, codeAllowed))
+			} else if (ts.peekType == TokenType.Identifier) {
+				ts.setStyle(ts.get(), PEGSyntaxHighlightingConstants.TEMPLATE_VARIABLE_ID);
+			} else if (ts.peekType == TokenType.Comma) {
+				continue;
+			} else if (ts.peekType == TokenType.RAngle) {
+				break;
+			} else {
 				return false;
-			if (ts.peek.type == TokenType.RParen)
-				ts.get();
-			return true;
-
-		case Identifier:
-			ts.get().style = syntaxHighlightingConstants.ruleNameTextAttribute;
-			if (ts.peek.type == TokenType.LAngle) {
-				do {
-					ts.get();
-					if (ts.peek.type == TokenType.TrueKeyword || ts.peek.type == TokenType.FalseKeyword) {
-						ts.get();
-					} else if (ts.peek.type == TokenType.Identifier) {
-						ts.get().style = syntaxHighlightingConstants.templateVariableTextAttribute;
-					} else if (ts.peek.type == TokenType.Comma) {
-						continue;
-					} else if (ts.peek.type == TokenType.RAngle) {
-						break;
-					} else {
-						skipTillGrammarStart(ts);
-						return false;
-					}
-				} while (ts.peek.type == TokenType.Comma);
-				if (ts.peek.type == TokenType.RAngle) {
-					ts.get();
-				}
 			}
-			if (ts.peek.type == TokenType.Colon) {
-				ts.get();
-				if (ts.peek.type == TokenType.Identifier) {
-					ts.get().style = codeAllowed ? syntaxHighlightingConstants.resultVariableTextAttribute
-							: syntaxHighlightingConstants.identifierTextAttribute;
-				}
-			}
-			return true;
-		case EOFKeyword:
-		case String:
-			ts.get();
-			return true;
-		case CharacterClass:
+		} while (ts.peekType == TokenType.Comma);
+		if (ts.peekType == TokenType.RAngle) {
 			ts.get();
-			if (ts.peek.type == TokenType.Colon) {
-				ts.get();
-				if (ts.peek.type == TokenType.Identifier) {
-					ts.get().style = codeAllowed ? syntaxHighlightingConstants.resultVariableTextAttribute
-							: syntaxHighlightingConstants.identifierTextAttribute;
-				}
-			}
-			return true;
-		case Amp: {
-			Token ampToken = ts.get();
-			boolean isCustomPredicate = ts.peek.type == TokenType.CodeSnippetStart;
-			if (isCustomPredicate)
-				ampToken.style = syntaxHighlightingConstants.codeTextAttribute;
-			if (!parsePrimaryExpression(ts, codeAllowed))
-				return false;
-			return true;
 		}
+		return true;
+	}
+
+	/**
+	 * @return true if a sequence expression ends before a token of type
+	 */
+	private static boolean isSequenceEnd(TokenType type) {
+		switch (type) {
+		case Amp:
+		case BlockComment:
+		case CharacterClass:
+		case CodeSnippetBlockComment:
+		case CodeSnippetChar:
+		case CodeSnippetEnd:
+		case CodeSnippetHeaderName:
+		case CodeSnippetIdentifier:
+		case CodeSnippetKeyword:
+		case CodeSnippetLineComment:
+		case CodeSnippetNumber:
+		case CodeSnippetPunctuator:
+		case CodeSnippetStart:
+		case CodeSnippetString:
+		case CodeSnippetSubstitution:
+		case CodeSnippetUnknown:
 		case EMark:
-			ts.get();
-			if (!parsePrimaryExpression(ts, false))
-				return false;
-			return true;
-		case CodeSnippetStart: {
-			if (!codeAllowed)
-				ts.peek.style = null;
-			ts.get();
+		case EOFKeyword:
+		case FalseKeyword:
+		case Identifier:
+		case LAngle:
+		case LParen:
+		case LineComment:
+		case Plus:
+		case QMark:
+		case Star:
+		case String:
+		case TrueKeyword:
+		case Whitespace:
+			return false;
+		case CodeKeyword:
+		case Colon:
+		case ColonColon:
+		case Comma:
+		case EndOfFile:
+		case Equal:
+		case FSlash:
+		case NamespaceKeyword:
+		case RAngle:
+		case RParen:
+		case Semicolon:
+		case TypedefKeyword:
+		case Unknown:
 			return true;
 		}
-		default:
-			skipTillGrammarStart(ts);
-			return false;
+		return true;
+	}
+
+	/**
+	 * the kinds of the frames on the stack of {@link #parseExpression}. Each
+	 * frame is stored as its kind shifted left by one, or'ed with 1 if code is
+	 * allowed in it.
+	 */
+	private static final int SEQUENCE_FRAME = 0, ALTERNATIVES_FRAME = 1, PARENTHESES_FRAME = 2;
+
+	/**
+	 * parse the tokens after a name in a primary expression, or after a
+	 * character class
+	 */
+	private void parseResultVariable(TokenSource ts, boolean codeAllowed) {
+		if (ts.peekType == TokenType.Colon) {
+			ts.get();
+			if (ts.peekType == TokenType.Identifier) {
+				ts.setStyle(ts.get(), codeAllowed ? PEGSyntaxHighlightingConstants.RESULT_VARIABLE_ID
+						: PEGSyntaxHighlightingConstants.IDENTIFIER_ID);
+			}
 		}
 	}
 
-	private boolean parseRepeatOptionalExpression(TokenSource ts, boolean codeAllowed) {
-		if (!parsePrimaryExpression(ts, codeAllowed))
-			return false;
-		while (true) {
-			if (ts.peek.type == TokenType.QMark) {
+	/**
+	 * parse an expression. Nested expressions are kept on an explicit stack
+	 * instead of the call stack, so any depth of nesting can be parsed.
+	 * 
+	 * @return false if there was an error, after skipping to where the
+	 *         grammar might start again
+	 */
+	private boolean parseExpression(TokenSource ts, boolean codeAllowed) {
+		int[] frames = new int[16];
+		int frameCount = 0;
+		ts.startNode();
+		frames[frameCount++] = ALTERNATIVES_FRAME << 1 | (codeAllowed ? 1 : 0);
+		ts.startNode();
+		frames[frameCount++] = SEQUENCE_FRAME << 1 | (codeAllowed ? 1 : 0);
+		boolean succeeded = true;
+		parseLoop: while (true) {
+			// parse a primary expression
+			switch (ts.peekType) {
+			case LParen:
 				ts.get();
-			} else if (ts.peek.type == TokenType.Star) {
+				if (ts.peekType == TokenType.RParen) {
+					ts.get();
+					break;
+				}
+				if (frameCount + 3 > frames.length)
+					frames = Arrays.copyOf(frames, frames.length * 2);
+				frames[frameCount++] = PARENTHESES_FRAME << 1 | (codeAllowed ? 1 : 0);
+				ts.startNode();
+				frames[frameCount++] = ALTERNATIVES_FRAME << 1 | (codeAllowed ? 1 : 0);
+				ts.startNode();
+				frames[frameCount++] = SEQUENCE_FRAME << 1 | (codeAllowed ? 1 : 0);
+				continue parseLoop;
+			case Identifier:
+				ts.setStyle(ts.get(), PEGSyntaxHighlightingConstants.RULE_NAME_ID);
+				if (ts.peekType == TokenType.LAngle) {
+					ts.startNode();
+					boolean parsedArguments = parseTemplateArguments(ts);
+					ts.finishNode(SyntaxNode.Kind.TemplateArguments);
+					if (!parsedArguments) {
+						skipTillGrammarStart(ts);
+						succeeded = false;
+						break parseLoop;
+					}
+				}
+				parseResultVariable(ts, codeAllowed);
+				break;
+			case EOFKeyword:
+			case String:
 				ts.get();
-			} else if (ts.peek.type == TokenType.Plus) {
+				break;
+			case CharacterClass:
 				ts.get();
-			} else {
+				parseResultVariable(ts, codeAllowed);
 				break;
+			case Amp: {
+				int ampToken = ts.get();
+				boolean isCustomPredicate = ts.peekType == TokenType.CodeSnippetStart;
+				if (isCustomPredicate)
+					ts.setStyle(ampToken, PEGSyntaxHighlightingConstants.CODE_ID);
+				continue parseLoop;
 			}
-		}
-		return true;
-	}
-
-	private boolean parseSequenceExpression(TokenSource ts, boolean codeAllowed) {
-		if (!parseRepeatOptionalExpression(ts, codeAllowed))
-			return false;
-		while (true) {
-			switch (ts.peek.type) {
-			case Amp:
-			case BlockComment:
-			case CharacterClass:
-			case CodeSnippetBlockComment:
-			case CodeSnippetChar:
-			case CodeSnippetEnd:
-			case CodeSnippetHeaderName:
-			case CodeSnippetIdentifier:
-			case CodeSnippetKeyword:
-			case CodeSnippetLineComment:
-			case CodeSnippetNumber:
-			case CodeSnippetPunctuator:
-			case CodeSnippetStart:
-			case CodeSnippetString:
-			case CodeSnippetSubstitution:
-			case CodeSnippetUnknown:
 			case EMark:
-			case EOFKeyword:
-			case FalseKeyword:
-			case Identifier:
-			case LAngle:
-			case LParen:
-			case LineComment:
-			case Plus:
-			case QMark:
-			case Star:
-			case String:
-			case TrueKeyword:
-			case Whitespace:
+				ts.get();
+				// only the operand is parsed without code allowed; the frames
+				// have the setting for the rest of their expressions
+				codeAllowed = false;
+				continue parseLoop;
+			case CodeSnippetStart: {
+				ts.startNode();
+				if (!codeAllowed)
+					ts.setStyle(ts.peek, PEGSyntaxHighlightingConstants.NO_STYLE_ID);
+				ts.get();
+				ts.finishNode(SyntaxNode.Kind.CodeSnippet);
 				break;
-			case CodeKeyword:
-			case Colon:
-			case ColonColon:
-			case Comma:
-			case EndOfFile:
-			case Equal:
-			case FSlash:
-			case NamespaceKeyword:
-			case RAngle:
-			case RParen:
-			case Semicolon:
-			case TypedefKeyword:
-			case Unknown:
-				return true;
 			}
-			if (!parseRepeatOptionalExpression(ts, codeAllowed))
-				return false;
+			default:
+				skipTillGrammarStart(ts);
+				succeeded = false;
+				break parseLoop;
+			}
+			// finished a primary expression; finish the frames it completes
+			while (true) {
+				int frame = frames[frameCount - 1];
+				codeAllowed = (frame & 1) != 0;
+				switch (frame >> 1) {
+				case SEQUENCE_FRAME:
+					while (ts.peekType == TokenType.QMark || ts.peekType == TokenType.Star
+							|| ts.peekType == TokenType.Plus)
+						ts.get();
+					if (!isSequenceEnd(ts.peekType))
+						continue parseLoop;
+					ts.finishNode(SyntaxNode.Kind.Sequence);
+					frameCount--;
+					break;
+				case ALTERNATIVES_FRAME:
+					if (ts.peekType == TokenType.FSlash) {
+						ts.get();
+						ts.startNode();
+						frames[frameCount++] = SEQUENCE_FRAME << 1 | (codeAllowed ? 1 : 0);
+						continue parseLoop;
+					}
+					ts.finishNode(SyntaxNode.Kind.Expression);
+					frameCount--;
+					if (frameCount == 0)
+						return true;
+					break;
+				case PARENTHESES_FRAME:
+					if (ts.peekType == TokenType.RParen)
+						ts.get();
+					frameCount--;
+					break;
+				}
+			}
 		}
+		// give up on the whole expression, finishing the nodes that are open
+		while (frameCount > 0) {
+			int frameKind = frames[--frameCount] >> 1;
+			if (frameKind == SEQUENCE_FRAME)
+				ts.finishNode(SyntaxNode.Kind.Sequence);
+			else if (frameKind == ALTERNATIVES_FRAME)
+				ts.finishNode(SyntaxNode.Kind.Expression);
+		}
+		return succeeded;
 	}
 
-	private boolean parseExpression(TokenSource ts, boolean codeAllowed) {
-		if (!parseSequenceExpression(ts, codeAllowed))
-			return false;
-		while (ts.peek.type == TokenType.FSlash) {
+	private boolean parseTemplateParameters(TokenSource ts) {
+		Assert.isTrue(ts.peekType == TokenType.LAngle);
+		do {
 			ts.get();
-			if (!parseSequenceExpression(ts, codeAllowed))
+			if (ts.peekType == TokenType.Comma)
+				continue;
+			if (ts.peekType == TokenType.RAngle)
+				break;
+			if (ts.peekType != TokenType.Identifier)
 				return false;
-		}
+			ts.setStyle(ts.get(), PEGSyntaxHighlightingConstants.TEMPLATE_VARIABLE_ID);
+			if (ts.peekType != TokenType.Colon) {
+				if (ts.peekType == TokenType.Comma)
+					continue;
+				if (ts.peekType == TokenType.RAngle)
+					break;
+			} else
+				ts.get();
+			if (ts.peekType == TokenType.Comma)
+				continue;
+			if (ts.peekType == TokenType.RAngle)
+				break;
+			if (ts.peekType != TokenType.Identifier)
+				return false;
+			ts.setStyle(ts.get(), PEGSyntaxHighlightingConstants.TYPE_NAME_ID);
+		} while (ts.peekType == TokenType.Comma);
+		if (ts.peekType == TokenType.RAngle)
+			ts.get();
 		return true;
 	}
 
 	private void parseRule(TokenSource ts) {
-		if (ts.peek.type != TokenType.Identifier) {
+		if (ts.peekType != TokenType.Identifier) {
 			skipTillGrammarStart(ts);
 			return;
 		}
-		ts.get().style = syntaxHighlightingConstants.ruleNameTextAttribute;
-		if (ts.peek.type == TokenType.LAngle) {
-			do {
-				ts.get();
-				if (ts.peek.type == TokenType.Comma)
-					continue;
-				if (ts.peek.type == TokenType.RAngle)
-					break;
-				if (ts.peek.type != TokenType.Identifier) {
-					skipTillGrammarStart(ts);
-					return;
-				}
-				ts.get().style = syntaxHighlightingConstants.templateVariableTextAttribute;
-				if (ts.peek.type != TokenType.Colon) {
-					if (ts.peek.type == TokenType.Comma)
-						continue;
-					if (ts.peek.type == TokenType.RAngle)
-						break;
-				} else
-					ts.get();
-				if (ts.peek.type == TokenType.Comma)
-					continue;
-				if (ts.peek.type == TokenType.RAngle)
-					break;
-				if (ts.peek.type != TokenType.Identifier) {
-					skipTillGrammarStart(ts);
-					return;
-				}
-				ts.get().style = syntaxHighlightingConstants.typeNameTextAttribute;
-			} while (ts.peek.type == TokenType.Comma);
-			if (ts.peek.type == TokenType.RAngle)
-				ts.get();
+		ts.setStyle(ts.get(), PEGSyntaxHighlightingConstants.RULE_NAME_ID);
+		if (ts.peekType == TokenType.LAngle) {
+			ts.startNode();
+			boolean parsedParameters = parseTemplateParameters(ts);
+			ts.finishNode(SyntaxNode.Kind.TemplateParameters);
+			if (!parsedParameters) {
+				skipTillGrammarStart(ts);
+				return;
+			}
 		}
-		if (ts.peek.type == TokenType.Colon) {
+		if (ts.peekType == TokenType.Colon) {
 			ts.get();
-			if (ts.peek.type != TokenType.Identifier) {
+			if (ts.peekType != TokenType.Identifier) {
 				skipTillGrammarStart(ts);
 				return;
 			}
-			ts.get().style = syntaxHighlightingConstants.typeNameTextAttribute;
+			ts.setStyle(ts.get(), PEGSyntaxHighlightingConstants.TYPE_NAME_ID);
 		}
-		if (ts.peek.type != TokenType.Equal) {
+		if (ts.peekType != TokenType.Equal) {
 			skipTillGrammarStart(ts);
 			return;
 		}
@@ -1817,37 +2543,674 @@ final class PEGParser {
 		return;
 	}
 
-	private void parseGrammar(final TokenSource ts) {
-		mainGrammarLoop: while (!ts.peek.isEOF()) {
-			if (ts.peek.type == TokenType.TypedefKeyword) {
-				parseType(ts);
-			} else if (ts.peek.type == TokenType.CodeKeyword) {
-				parseTopLevelCodeSnippet(ts);
-			} else if (ts.peek.type == TokenType.NamespaceKeyword) {
-				ts.get();
-				if (ts.peek.type != TokenType.Identifier) {
-					skipTillGrammarStart(ts);
-					continue mainGrammarLoop;
-				}
-				ts.get().style = syntaxHighlightingConstants.codeIdentifierTextAttribute;
-				while (ts.peek.type == TokenType.ColonColon) {
-					ts.get().style = syntaxHighlightingConstants.codePunctuatorTextAttribute;
-					if (ts.peek.type != TokenType.Identifier) {
-						skipTillGrammarStart(ts);
-						continue mainGrammarLoop;
-					}
-					ts.get().style = syntaxHighlightingConstants.codeIdentifierTextAttribute;
-				}
+	private void parseNamespace(final TokenSource ts) {
+		Assert.isTrue(ts.peekType == TokenType.NamespaceKeyword);
+		ts.get();
+		if (ts.peekType != TokenType.Identifier) {
+			skipTillGrammarStart(ts);
+			return;
+		}
+		ts.setStyle(ts.get(), PEGSyntaxHighlightingConstants.CODE_IDENTIFIER_ID);
+		while (ts.peekType == TokenType.ColonColon) {
+			ts.setStyle(ts.get(), PEGSyntaxHighlightingConstants.CODE_PUNCTUATOR_ID);
+			if (ts.peekType != TokenType.Identifier) {
 				skipTillGrammarStart(ts);
+				return;
+			}
+			ts.setStyle(ts.get(), PEGSyntaxHighlightingConstants.CODE_IDENTIFIER_ID);
+		}
+		skipTillGrammarStart(ts);
+	}
+
+	/**
+	 * parse one rule, typedef, code or namespace block. The node it returns
+	 * depends only on the tokens from the current token up to and including
+	 * the current token once it's done.
+	 */
+	private SyntaxNode parseTopLevelItem(final TokenSource ts) {
+		ts.startItem();
+		if (ts.peekType == TokenType.TypedefKeyword) {
+			parseType(ts);
+			return ts.finishNode(SyntaxNode.Kind.Typedef);
+		} else if (ts.peekType == TokenType.CodeKeyword) {
+			parseTopLevelCodeSnippet(ts);
+			return ts.finishNode(SyntaxNode.Kind.CodeBlock);
+		} else if (ts.peekType == TokenType.NamespaceKeyword) {
+			parseNamespace(ts);
+			return ts.finishNode(SyntaxNode.Kind.Namespace);
+		} else {
+			parseRule(ts);
+			return ts.finishNode(SyntaxNode.Kind.Rule);
+		}
+	}
+
+	/**
+	 * @return the tokens with the styles from parsing them, or null if monitor
+	 *         was canceled first
+	 */
+	private ParseResult parseGrammar(TokenBuffer tokens, IProgressMonitor monitor) {
+		TokenSource ts = new TokenSource(tokens);
+		SyntaxTree tree = new SyntaxTree(0);
+		while (ts.peekType != TokenType.EndOfFile) {
+			if (monitor != null && monitor.isCanceled())
+				return null;
+			int start = ts.peek;
+			tree.add(start, parseTopLevelItem(ts));
+		}
+		tree.addEnd(ts.peek);
+		byte[] styles = tokens.copyStyles();
+		for (int i = 0; i < tree.getItemCount(); i++)
+			tree.getItem(i).applyStyles(styles, tree.getItemStart(i));
+		return new ParseResult(tokens, styles, tree, 0, tokens.size());
+	}
+
+	/**
+	 * parse again only the top-level items that read tokens changed since
+	 * previous, sharing the nodes of the rest with previous and copying their
+	 * styles from it.
+	 * 
+	 * @param tokens
+	 *            the new tokens
+	 * @param change
+	 *            how tokens differ from previous.tokens
+	 * @return the new result, or null if monitor was canceled first
+	 */
+	private ParseResult reparseGrammar(ParseResult previous, TokenBuffer tokens, TokenChange change,
+			IProgressMonitor monitor) {
+		final int firstRelexedToken = change.firstRelexedToken;
+		final int firstReusedToken = change.firstReusedToken;
+		final int reusedTokenIndexDelta = change.reusedTokenIndexDelta;
+		SyntaxTree oldTree = previous.tree;
+		int oldItemCount = oldTree.getItemCount();
+		// an item reads one token past its end, so the first item to parse
+		// again is the first one whose following item starts at a changed token
+		int firstItem = oldTree.lowerBound(1, oldItemCount + 1, firstRelexedToken) - 1;
+		int start = firstItem == 0 ? 0 : oldTree.getItemStart(firstItem);
+		byte[] styles = tokens.copyStyles();
+		System.arraycopy(previous.styles, 0, styles, 0, start);
+		SyntaxTree tree = new SyntaxTree(oldItemCount + 1);
+		tree.addAll(oldTree, 0, firstItem, 0);
+		int end;
+		TokenSource ts = new TokenSource(tokens, start);
+		while (true) {
+			if (monitor != null && monitor.isCanceled())
+				return null;
+			if (ts.peek >= firstReusedToken) {
+				int oldItem = oldTree.indexOf(firstItem, oldItemCount + 1, ts.peek - reusedTokenIndexDelta);
+				if (oldItem >= 0) {
+					// back in step with the old parse: the rest is the same
+					end = ts.peek;
+					tree.addAll(oldTree, oldItem, oldItemCount + 1, reusedTokenIndexDelta);
+					System.arraycopy(previous.styles, ts.peek - reusedTokenIndexDelta, styles, ts.peek,
+							tokens.size() - ts.peek);
+					break;
+				}
+			}
+			if (ts.peekType == TokenType.EndOfFile) {
+				end = ts.peek;
+				tree.addEnd(ts.peek);
+				break;
+			}
+			int itemStart = ts.peek;
+			SyntaxNode item = parseTopLevelItem(ts);
+			item.applyStyles(styles, itemStart);
+			tree.add(itemStart, item);
+		}
+		return new ParseResult(tokens, styles, tree, start, end);
+	}
+
+	/**
+	 * restyle tokens after an edit without parsing the grammar: the tokens
+	 * that are the same as in previous keep their styles, and the rest get
+	 * the styles they were lexed with until the grammar is parsed again.
+	 * 
+	 * @param editStart
+	 *            the start of the edited text
+	 * @param editEnd
+	 *            the end of the edited text in tokens
+	 */
+	private static ParseResult relexGrammar(ParseResult previous, TokenBuffer tokens, TokenChange change,
+			int editStart, int editEnd) {
+		int first = change.firstRelexedToken;
+		int last = change.firstReusedToken;
+		int delta = change.reusedTokenIndexDelta;
+		byte[] styles = tokens.copyStyles();
+		System.arraycopy(previous.styles, 0, styles, 0, first);
+		System.arraycopy(previous.styles, last - delta, styles, last, tokens.size() - last);
+		// the lexer restarts some way before the edit, so keep the styles of
+		// the tokens it lexed again the same
+		while (first < last && tokens.getEnd(first) <= editStart
+				&& isSameToken(previous.tokens, first, tokens, first, 0)) {
+			styles[first] = previous.styles[first];
+			first++;
+		}
+		int lastOffsetDelta = tokens.getOffset(tokens.size() - 1)
+				- previous.tokens.getOffset(previous.tokens.size() - 1);
+		while (last > first && tokens.getOffset(last - 1) >= editEnd
+				&& isSameToken(previous.tokens, last - 1 - delta, tokens, last - 1, lastOffsetDelta)) {
+			styles[last - 1] = previous.styles[last - 1 - delta];
+			last--;
+		}
+		return new ParseResult(tokens, styles, null, change.firstRelexedToken, change.firstReusedToken);
+	}
+
+	private static long getModificationStamp(IDocument document) {
+		if (document instanceof IDocumentExtension4)
+			return ((IDocumentExtension4) document).getModificationStamp();
+		return IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP;
+	}
+
+	private void addChange(DocumentEvent event) {
+		if (event == lastChangeEvent)
+			return;
+		lastChangeEvent = event;
+		// a parse after the change but before we heard about it already has it
+		if (result != null && resultModificationStamp != IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP
+				&& resultModificationStamp == getModificationStamp(event.getDocument()))
+			return;
+		addChange(event.getOffset(), event.getLength(), event.getText() == null ? 0 : event.getText().length());
+	}
+
+	private void addChange(int offset, int replacedLength, int insertedLength) {
+		changeModificationStamp = getModificationStamp(document);
+		if (!hasChange) {
+			hasChange = true;
+			changeStart = offset;
+			oldChangeEnd = offset + replacedLength;
+			newChangeEnd = offset + insertedLength;
+			return;
+		}
+		// merge with the previous changes; everything past the end of both
+		// changes is unchanged from the last time we tokenized
+		int end = Math.max(newChangeEnd, offset + replacedLength);
+		oldChangeEnd += end - newChangeEnd;
+		newChangeEnd = end + insertedLength - replacedLength;
+		changeStart = Math.min(changeStart, offset);
+	}
+
+	/**
+	 * @return the document being parsed, which the syntax tree matches when
+	 *         the {@link SyntaxTreeListener}s are told about it
+	 */
+	public IDocument getDocument() {
+		return document;
+	}
+
+	public void setDocument(IDocument document) {
+		if (this.document == document)
+			return;
+		if (this.document != null)
+			this.document.removeDocumentListener(documentListener);
+		this.document = document;
+		tokens = null;
+		checkpoints = null;
+		result = null;
+		semanticResult = null;
+		semanticChange = null;
+		changeSinceSemanticParse = null;
+		resultModificationStamp = IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP;
+		hasChange = false;
+		if (document != null)
+			document.addDocumentListener(documentListener);
+	}
+
+	/**
+	 * the syntax tree of a document: its top-level items in order, each with
+	 * the index of its first token, followed by the index of the EndOfFile
+	 * token. A tree isn't changed once it's parsed; the next version of the
+	 * document gets a new tree that shares the nodes of the unchanged items.
+	 */
+	static final class SyntaxTree {
+		private int[] starts;
+		private SyntaxNode[] items;
+		private int size = 0;
+
+		SyntaxTree(int capacity) {
+			starts = new int[Math.max(capacity, 16)];
+			items = new SyntaxNode[starts.length];
+		}
+
+		public int getItemCount() {
+			return size - 1;
+		}
+
+		/**
+		 * @return the index of the first token of the item at index, or of
+		 *         the EndOfFile token if index is the item count
+		 */
+		public int getItemStart(int index) {
+			return starts[index];
+		}
+
+		public SyntaxNode getItem(int index) {
+			return items[index];
+		}
+
+		private void ensureCapacity(int capacity) {
+			if (capacity > starts.length) {
+				int newCapacity = Math.max(starts.length * 2, capacity);
+				starts = Arrays.copyOf(starts, newCapacity);
+				items = Arrays.copyOf(items, newCapacity);
+			}
+		}
+
+		void add(int start, SyntaxNode item) {
+			ensureCapacity(size + 1);
+			starts[size] = start;
+			items[size++] = item;
+		}
+
+		void addEnd(int endOfFileToken) {
+			add(endOfFileToken, null);
+		}
+
+		/**
+		 * add the items in [from, to) of src, moved by tokenIndexDelta
+		 */
+		void addAll(SyntaxTree src, int from, int to, int tokenIndexDelta) {
+			ensureCapacity(size + to - from);
+			for (int i = from; i < to; i++) {
+				starts[size] = src.starts[i] + tokenIndexDelta;
+				items[size++] = src.items[i];
+			}
+		}
+
+		/**
+		 * @return the first index in [from, to) whose item starts at or after
+		 *         tokenIndex, or to if there isn't one
+		 */
+		public int lowerBound(int from, int to, int tokenIndex) {
+			int index = Arrays.binarySearch(starts, from, to, tokenIndex);
+			return index < 0 ? -index - 1 : index;
+		}
+
+		/**
+		 * @return the index in [from, to) of the item starting at tokenIndex,
+		 *         or -1 if there isn't one
+		 */
+		public int indexOf(int from, int to, int tokenIndex) {
+			int index = lowerBound(from, to, tokenIndex);
+			return index < to && starts[index] == tokenIndex ? index : -1;
+		}
+	}
+
+	/**
+	 * the tokens of a document along with its syntax tree and the style of
+	 * each token that comes from it, so the next parse only needs to redo the
+	 * items an edit touched. Nothing here is changed after parsing, so it can
+	 * be shared with the next parse and read from any thread.
+	 */
+	private static final class ParseResult {
+		public final TokenBuffer tokens;
+		public final byte[] styles;
+		/**
+		 * the syntax tree, or null if the grammar wasn't parsed and the
+		 * styles of the changed tokens are just the ones they were lexed with
+		 */
+		public final SyntaxTree tree;
+		/**
+		 * the tokens that were looked at again: the ones before them have the
+		 * styles of the same tokens in the result this was made from, and the
+		 * ones after them those of the tokens they were moved from
+		 */
+		public final int reparsedTokensStart;
+		public final int reparsedTokensEnd;
+
+		public ParseResult(TokenBuffer tokens, byte[] styles, SyntaxTree tree, int reparsedTokensStart,
+				int reparsedTokensEnd) {
+			this.tokens = tokens;
+			this.styles = styles;
+			this.tree = tree;
+			this.reparsedTokensStart = reparsedTokensStart;
+			this.reparsedTokensEnd = reparsedTokensEnd;
+		}
+	}
+
+	private ParseResult parse(IDocument document) {
+		setDocument(document);
+		long modificationStamp = getModificationStamp(document);
+		if (result != null) {
+			long expectedModificationStamp = hasChange ? changeModificationStamp : resultModificationStamp;
+			if (modificationStamp == IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP
+					|| modificationStamp == expectedModificationStamp) {
+				if (!hasChange)
+					return result;
 			} else {
-				parseRule(ts);
+				// the document changed but the listener hasn't told us how yet,
+				// so we have to start over
+				hasChange = false;
+				tokens = null;
+				checkpoints = null;
+				result = null;
+				semanticResult = null;
+			}
+		}
+		resultModificationStamp = modificationStamp;
+		Tokenizer tokenizer = new Tokenizer();
+		tokenizer.setSnippetCache(snippetCache);
+		if (tokens == null && document.getLength() >= parallelLexingThreshold
+				&& LexingPoolHolder.POOL.getParallelism() > 1) {
+			ForkJoinPool pool = LexingPoolHolder.POOL;
+			int chunkSize = Math.max(MINIMUM_PARALLEL_CHUNK_SIZE, document.getLength() / (4 * pool.getParallelism()));
+			tokens = tokenizer.tokenizeParallel(document, pool, chunkSize);
+			checkpoints = tokenizer.getCheckpoints();
+		} else if (tokens == null) {
+			tokens = tokenizer.tokenize(document);
+			checkpoints = tokenizer.getCheckpoints();
+		} else if (hasChange) {
+			final int editStart = changeStart;
+			final int editEnd = newChangeEnd;
+			tokens = tokenizer.retokenize(document, tokens, checkpoints, changeStart, oldChangeEnd, newChangeEnd);
+			checkpoints = tokenizer.getCheckpoints();
+			hasChange = false;
+			TokenChange change = new TokenChange(tokenizer);
+			ParseResult previous = result;
+			if (previous != null && semanticParseDeferred) {
+				result = relexGrammar(previous, tokens, change, editStart, editEnd);
+				semanticChange = semanticChange == null ? change : semanticChange.followedBy(change);
+				changeSinceSemanticParse = changeSinceSemanticParse == null ? change
+						: changeSinceSemanticParse.followedBy(change);
+				findDamage(previous, result, editStart, editEnd, change.reusedTokenIndexDelta);
+				return result;
+			}
+			if (previous != null && semanticChange == null) {
+				result = reparseGrammar(previous, tokens, change, null);
+				semanticResult = result;
+				findDamage(previous, result, editStart, editEnd, change.reusedTokenIndexDelta);
+				fireSyntaxTreeChanged();
+				return result;
+			}
+		}
+		hasChange = false;
+		result = parseGrammar(tokens, null);
+		semanticResult = result;
+		semanticChange = null;
+		damageStart = 0;
+		damageEnd = document.getLength();
+		fireSyntaxTreeChanged();
+		return result;
+	}
+
+	private static boolean isSameToken(TokenBuffer a, int aIndex, TokenBuffer b, int bIndex, int offsetDelta) {
+		return a.getOffset(aIndex) + offsetDelta == b.getOffset(bIndex) && a.getLength(aIndex) == b.getLength(bIndex)
+				&& a.getType(aIndex) == b.getType(bIndex);
+	}
+
+	private static boolean isSameToken(ParseResult a, int aIndex, ParseResult b, int bIndex, int offsetDelta) {
+		return isSameToken(a.tokens, aIndex, b.tokens, bIndex, offsetDelta) && a.styles[aIndex] == b.styles[bIndex];
+	}
+
+	/**
+	 * find the text whose tokens or styles differ between previous and
+	 * current, looking only at the tokens the last reparse went through. The
+	 * text before the edit is compared with the same text in previous, and the
+	 * text after it with the text that was after it in previous, the same way
+	 * the text widget moves the old styles.
+	 * 
+	 * @param editStart
+	 *            the start of the edited text
+	 * @param editEnd
+	 *            the end of the edited text in current
+	 * @param reusedTokenIndexDelta
+	 *            how far the tokens after the reparsed tokens moved
+	 */
+	private void findDamage(ParseResult previous, ParseResult current, int editStart, int editEnd,
+			int reusedTokenIndexDelta) {
+		int first = current.reparsedTokensStart;
+		int last = current.reparsedTokensEnd;
+		while (first < last && current.tokens.getEnd(first) <= editStart
+				&& isSameToken(previous, first, current, first, 0))
+			first++;
+		int lastOffsetDelta = current.tokens.getOffset(current.tokens.size() - 1)
+				- previous.tokens.getOffset(previous.tokens.size() - 1);
+		while (last > first && current.tokens.getOffset(last - 1) >= editEnd
+				&& isSameToken(previous, last - 1 - reusedTokenIndexDelta, current, last - 1, lastOffsetDelta))
+			last--;
+		damageStart = current.tokens.getOffset(first);
+		damageEnd = first < last ? current.tokens.getEnd(last - 1) : damageStart;
+	}
+
+	/**
+	 * the most text before a region that {@link #parseRegion} lexes to get
+	 * into the right state for it, unless the region is in a code snippet,
+	 * block comment or string
+	 */
+	private static final int MAX_REGION_CONTEXT = 4 << 10;
+
+	/**
+	 * @return where to start lexing to get the tokens at offset without
+	 *         lexing all of document before it: the start of its partition,
+	 *         since every partition starts in grammar text, or a line start
+	 *         in the same partition if that's too far back
+	 */
+	private static int findRegionStart(IDocument document, int offset) {
+		try {
+			ITypedRegion partition = TextUtilities.getPartition(document, PEGPartitions.PEG_PARTITIONING, offset,
+					false);
+			if (offset - partition.getOffset() <= MAX_REGION_CONTEXT
+					|| !IDocument.DEFAULT_CONTENT_TYPE.equals(partition.getType()))
+				return partition.getOffset();
+			int lineStart = document.getLineOffset(document.getLineOfOffset(offset - MAX_REGION_CONTEXT));
+			return Math.max(lineStart, partition.getOffset());
+		} catch (BadLocationException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * lex and parse the text around [offset, offset + length) without
+	 * touching the tokens of the whole document
+	 */
+	private ParseResult parseRegion(IDocument document, int offset, int length) {
+		Tokenizer tokenizer = new Tokenizer();
+		return parseGrammar(tokenizer.tokenizeRegion(document, findRegionStart(document, offset), offset + length),
+				null);
+	}
+
+	/**
+	 * a copy of the text of a document, to be parsed on another thread by
+	 * {@link PEGParser#parseSnapshot}
+	 */
+	static final class Snapshot {
+		private final IDocument document;
+		private final long modificationStamp;
+		private final char[] text;
+		private TokenBuffer tokens;
+		private List<Tokenizer.Checkpoint> checkpoints;
+		private ParseResult result;
+
+		private Snapshot(IDocument document, long modificationStamp, char[] text) {
+			this.document = document;
+			this.modificationStamp = modificationStamp;
+			this.text = text;
+		}
+	}
+
+	/**
+	 * @return true if document has been parsed, so styling it only needs the
+	 *         changes since then to be parsed
+	 */
+	public boolean isParsed(IDocument document) {
+		return document == this.document && result != null;
+	}
+
+	/**
+	 * copy the text of document to be parsed by {@link #parseSnapshot}. Until
+	 * the result is used, the changes made to the document after this are
+	 * kept so they can be applied to it.
+	 */
+	public Snapshot takeSnapshot(IDocument document) {
+		setDocument(document);
+		if (tokens == null)
+			hasChange = false;
+		return new Snapshot(document, getModificationStamp(document), document.get().toCharArray());
+	}
+
+	/**
+	 * lex and parse snapshot. This doesn't change the parser, so it can run on
+	 * any thread.
+	 * 
+	 * @return false if monitor was canceled first
+	 */
+	public boolean parseSnapshot(Snapshot snapshot, IProgressMonitor monitor) {
+		Tokenizer tokenizer = new Tokenizer();
+		TokenBuffer snapshotTokens;
+		if (snapshot.text.length >= parallelLexingThreshold && LexingPoolHolder.POOL.getParallelism() > 1) {
+			ForkJoinPool pool = LexingPoolHolder.POOL;
+			int chunkSize = Math.max(MINIMUM_PARALLEL_CHUNK_SIZE, snapshot.text.length / (4 * pool.getParallelism()));
+			snapshotTokens = tokenizer.tokenizeParallel(snapshot.text, pool, chunkSize);
+		} else
+			snapshotTokens = tokenizer.tokenize(new CharacterSource(snapshot.text));
+		if (monitor != null && monitor.isCanceled())
+			return false;
+		ParseResult snapshotResult = parseGrammar(snapshotTokens, monitor);
+		if (snapshotResult == null)
+			return false;
+		snapshot.tokens = snapshotTokens;
+		snapshot.checkpoints = tokenizer.getCheckpoints();
+		snapshot.result = snapshotResult;
+		return true;
+	}
+
+	/**
+	 * use the result of parsing snapshot, applying the changes made since it
+	 * was taken before the {@link SyntaxTreeListener}s are told about it.
+	 * Must be called on the thread the document is changed on.
+	 * 
+	 * @return false if the document was parsed some other way first, so the
+	 *         result wasn't needed
+	 */
+	public boolean useSnapshot(Snapshot snapshot) {
+		if (snapshot.document != document || tokens != null || snapshot.result == null)
+			return false;
+		tokens = snapshot.tokens;
+		checkpoints = snapshot.checkpoints;
+		result = snapshot.result;
+		semanticResult = result;
+		semanticChange = null;
+		resultModificationStamp = snapshot.modificationStamp;
+		// the listeners read the document at the tokens' offsets, so they're
+		// only told once the tree has the changes made while it was parsed
+		if (hasChange) {
+			parse(document);
+			// the reconciler skipped those changes since the document wasn't
+			// parsed yet, so nothing else would parse their grammar
+			if (semanticChange != null) {
+				result = reparseGrammar(semanticResult, result.tokens, semanticChange, null);
+				semanticResult = result;
+				semanticChange = null;
+				changeSinceSemanticParse = null;
+				fireSyntaxTreeChanged();
 			}
+		} else
+			fireSyntaxTreeChanged();
+		damageStart = 0;
+		damageEnd = document.getLength();
+		return true;
+	}
+
+	/**
+	 * the grammar of a document to be parsed on another thread by
+	 * {@link PEGParser#runSemanticParse}, for the styles lexing alone can't
+	 * give
+	 */
+	static final class SemanticParse {
+		private final ParseResult previous;
+		private final TokenBuffer tokens;
+		private final TokenChange change;
+		private ParseResult result;
+
+		private SemanticParse(ParseResult previous, TokenBuffer tokens, TokenChange change) {
+			this.previous = previous;
+			this.tokens = tokens;
+			this.change = change;
+		}
+	}
+
+	/**
+	 * catch up with the changes to document and get the grammar to parse for
+	 * them. Must be called on the thread the document is changed on.
+	 * 
+	 * @return the grammar to parse, or null if it's already parsed or the
+	 *         document hasn't been parsed at all yet
+	 */
+	public SemanticParse startSemanticParse(IDocument document) {
+		if (!isParsed(document))
+			return null;
+		parse(document);
+		if (semanticChange == null)
+			return null;
+		changeSinceSemanticParse = null;
+		return new SemanticParse(semanticResult, result.tokens, semanticChange);
+	}
+
+	/**
+	 * parse the grammar of semanticParse. This doesn't change the parser, so
+	 * it can run on any thread.
+	 * 
+	 * @return false if monitor was canceled first
+	 */
+	public boolean runSemanticParse(SemanticParse semanticParse, IProgressMonitor monitor) {
+		semanticParse.result = reparseGrammar(semanticParse.previous, semanticParse.tokens, semanticParse.change,
+				monitor);
+		return semanticParse.result != null;
+	}
+
+	/**
+	 * @return true if the document hasn't changed since semanticParse was
+	 *         started
+	 */
+	public boolean isCurrent(SemanticParse semanticParse) {
+		return semanticParse.previous == semanticResult && result != null && semanticParse.tokens == result.tokens;
+	}
+
+	/**
+	 * use the result of semanticParse. If the document changed since it was
+	 * started, its result is only used as the starting point for the next
+	 * one. Must be called on the thread the document is changed on.
+	 * 
+	 * @return the text whose styles changed, or null if none did
+	 */
+	public IRegion useSemanticParse(SemanticParse semanticParse) {
+		if (semanticParse.previous != semanticResult || semanticParse.result == null)
+			return null;
+		semanticResult = semanticParse.result;
+		if (semanticParse.tokens != result.tokens) {
+			semanticChange = changeSinceSemanticParse;
+			return null;
 		}
+		semanticChange = null;
+		byte[] oldStyles = result.styles;
+		byte[] newStyles = semanticResult.styles;
+		result = semanticResult;
+		fireSyntaxTreeChanged();
+		int first = 0;
+		int last = newStyles.length;
+		while (first < last && oldStyles[first] == newStyles[first])
+			first++;
+		if (first == last)
+			return null;
+		while (oldStyles[last - 1] == newStyles[last - 1])
+			last--;
+		int start = result.tokens.getOffset(first);
+		return new Region(start, result.tokens.getEnd(last - 1) - start);
 	}
 
-	public List<Token> parse(IDocument document) {
-		List<Token> retval = new Tokenizer(syntaxHighlightingConstants).tokenize(document);
-		parseGrammar(new TokenSource(retval.iterator()));
-		return retval;
+	/**
+	 * @return the text that needs restyling after event, which must be the
+	 *         last change to the document. This is the text whose tokens or
+	 *         semantic styles changed, and the inserted text.
+	 */
+	public IRegion getDamageRegion(DocumentEvent event) {
+		IDocument document = event.getDocument();
+		if (document == this.document)
+			addChange(event);
+		parse(document);
+		int insertedLength = event.getText() == null ? 0 : event.getText().length();
+		if (damageStart == damageEnd)
+			return new Region(event.getOffset(), insertedLength);
+		int start = Math.min(damageStart, event.getOffset());
+		int end = Math.max(damageEnd, event.getOffset() + insertedLength);
+		return new Region(start, end - start);
 	}
 }
@@ -0,0 +1,32 @@
+package tk.programmerjake.peg_parser_generator.eclipse.editors;
+
+import org.eclipse.jface.text.IDocument;
+
+/**
+ * the partitioning of PEG grammar documents; everything not in one of these
+ * partitions is grammar text, which has {@link IDocument#DEFAULT_CONTENT_TYPE}
+ */
+public final class PEGPartitions {
+	public static final String PEG_PARTITIONING = "__peg_partitioning";
+	public static final String CODE_SNIPPET = "__peg_code_snippet";
+	public static final String BLOCK_COMMENT = "__peg_block_comment";
+	public static final String STRING = "__peg_string";
+
+	private PEGPartitions() {
+	}
+
+	/**
+	 * @return the content types of the partitions, not including
+	 *         {@link IDocument#DEFAULT_CONTENT_TYPE}
+	 */
+	public static String[] getPartitionTypes() {
+		return new String[] { CODE_SNIPPET, BLOCK_COMMENT, STRING };
+	}
+
+	/**
+	 * @return all the content types in the partitioning
+	 */
+	public static String[] getContentTypes() {
+		return new String[] { IDocument.DEFAULT_CONTENT_TYPE, CODE_SNIPPET, BLOCK_COMMENT, STRING };
+	}
+}
@@ -0,0 +1,199 @@
+package tk.programmerjake.peg_parser_generator.eclipse.editors;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.ITextViewer;
+import org.eclipse.jface.text.ITextViewerExtension2;
+import org.eclipse.jface.text.reconciler.AbstractReconciler;
+import org.eclipse.jface.text.reconciler.DirtyRegion;
+import org.eclipse.jface.text.reconciler.IReconcilingStrategy;
+import org.eclipse.jface.text.reconciler.IReconcilingStrategyExtension;
+import org.eclipse.swt.custom.StyledText;
+import org.eclipse.swt.widgets.Display;
+
+/**
+ * parses the grammar in the reconciler's thread and restyles the text whose
+ * semantic styles changed, while the presentation reconciler only lexes. The
+ * reconciler's delay follows how long parsing takes, so quick parses show
+ * their styles soon and slow ones wait for typing to pause instead of being
+ * canceled by the next key.
+ */
+final class PEGReconcilingStrategy implements IReconcilingStrategy, IReconcilingStrategyExtension {
+
+	/**
+	 * the reconciler delay before anything has been parsed, in milliseconds
+	 */
+	public static final int DEFAULT_DELAY = 200;
+	public static final int MINIMUM_DELAY = 50;
+	public static final int MAXIMUM_DELAY = 1000;
+	/**
+	 * how many times the average parse time to wait after the last change
+	 */
+	private static final int DELAY_PER_PARSE_TIME = 2;
+
+	private final PEGParser parser;
+	private final ITextViewer viewer;
+	private IDocument document;
+	private IProgressMonitor monitor;
+	private AbstractReconciler reconciler;
+	/**
+	 * in nanoseconds, or -1 if nothing has been parsed
+	 */
+	private volatile long averageParseTime = -1;
+	private volatile int parseCount = 0;
+	private volatile int canceledParseCount = 0;
+	private volatile int staleParseCount = 0;
+
+	public PEGReconcilingStrategy(PEGParser parser, ITextViewer viewer) {
+		this.parser = parser;
+		this.viewer = viewer;
+	}
+
+	/**
+	 * @param reconciler
+	 *            the reconciler whose delay to set from the parse times, or
+	 *            null to leave it alone
+	 */
+	public void setReconciler(AbstractReconciler reconciler) {
+		this.reconciler = reconciler;
+		if (reconciler != null)
+			reconciler.setDelay(getDelay());
+	}
+
+	@Override
+	public void setDocument(IDocument document) {
+		this.document = document;
+		averageParseTime = -1;
+		parseCount = 0;
+		canceledParseCount = 0;
+		staleParseCount = 0;
+		if (reconciler != null)
+			reconciler.setDelay(getDelay());
+	}
+
+	/**
+	 * @return the average time parsing the grammar of the document took after
+	 *         a change, in nanoseconds, or -1 if it hasn't been parsed yet
+	 */
+	public long getAverageParseTime() {
+		return averageParseTime;
+	}
+
+	/**
+	 * @return how many parses of the document finished
+	 */
+	public int getParseCount() {
+		return parseCount;
+	}
+
+	/**
+	 * @return how many parses of the document were canceled by a change
+	 *         before they finished
+	 */
+	public int getCanceledParseCount() {
+		return canceledParseCount;
+	}
+
+	/**
+	 * @return how many parses of the document finished after a change made
+	 *         them out of date, so they only saved work for the next one
+	 */
+	public int getStaleParseCount() {
+		return staleParseCount;
+	}
+
+	/**
+	 * @return the reconciler delay for the document, in milliseconds
+	 */
+	public int getDelay() {
+		long parseTime = averageParseTime;
+		if (parseTime < 0)
+			return DEFAULT_DELAY;
+		long delay = parseTime * DELAY_PER_PARSE_TIME / 1000000;
+		return (int) Math.max(MINIMUM_DELAY, Math.min(MAXIMUM_DELAY, delay));
+	}
+
+	private void addParseTime(long parseTime) {
+		long average = averageParseTime;
+		averageParseTime = average < 0 ? parseTime : (average * 3 + parseTime) / 4;
+		parseCount++;
+		if (reconciler != null)
+			reconciler.setDelay(getDelay());
+	}
+
+	@Override
+	public void setProgressMonitor(IProgressMonitor monitor) {
+		this.monitor = monitor;
+	}
+
+	@Override
+	public void initialReconcile() {
+		reconcile();
+	}
+
+	@Override
+	public void reconcile(DirtyRegion dirtyRegion, IRegion subRegion) {
+		reconcile();
+	}
+
+	@Override
+	public void reconcile(IRegion partition) {
+		reconcile();
+	}
+
+	private static boolean isDisposed(StyledText textWidget) {
+		return textWidget == null || textWidget.isDisposed();
+	}
+
+	private void reconcile() {
+		StyledText textWidget = viewer.getTextWidget();
+		if (isDisposed(textWidget))
+			return;
+		Display display = textWidget.getDisplay();
+		final IDocument document = this.document;
+		// the parser is only changed on the UI thread; just the parsing itself
+		// is done here
+		while (monitor == null || !monitor.isCanceled()) {
+			final PEGParser.SemanticParse[] semanticParse = new PEGParser.SemanticParse[1];
+			if (display.isDisposed())
+				return;
+			display.syncExec(new Runnable() {
+
+				@Override
+				public void run() {
+					if (!isDisposed(viewer.getTextWidget()) && viewer.getDocument() == document)
+						semanticParse[0] = parser.startSemanticParse(document);
+				}
+			});
+			if (semanticParse[0] == null)
+				return;
+			long startTime = System.nanoTime();
+			if (!parser.runSemanticParse(semanticParse[0], monitor)) {
+				canceledParseCount++;
+				return;
+			}
+			addParseTime(System.nanoTime() - startTime);
+			if (display.isDisposed())
+				return;
+			display.syncExec(new Runnable() {
+
+				@Override
+				public void run() {
+					if (isDisposed(viewer.getTextWidget()))
+						return;
+					if (!parser.isCurrent(semanticParse[0]))
+						staleParseCount++;
+					IRegion damage = parser.useSemanticParse(semanticParse[0]);
+					if (damage == null)
+						return;
+					if (viewer instanceof ITextViewerExtension2)
+						((ITextViewerExtension2) viewer).invalidateTextPresentation(damage.getOffset(),
+								damage.getLength());
+					else
+						viewer.invalidateTextPresentation();
+				}
+			});
+		}
+	}
+}
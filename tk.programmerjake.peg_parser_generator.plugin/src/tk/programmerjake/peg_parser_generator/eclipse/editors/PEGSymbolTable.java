@@ -0,0 +1,546 @@
+package tk.programmerjake.peg_parser_generator.eclipse.editors;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.Region;
+
+/**
+ * where each rule of a grammar is defined and referred to, and where the
+ * template parameters and result variables of each rule are used. Each
+ * top-level item keeps the names in it, grouped by name and in a sorted index
+ * by token, and a hash table maps each rule name to the items that define it
+ * and the items that refer to it. When the grammar is parsed again, only the
+ * items that aren't the same nodes as before are taken out of the table and
+ * put back. Offsets aren't stored, since every edit moves them; they're worked
+ * out from the syntax tree when they're asked for.
+ */
+final class PEGSymbolTable implements PEGParser.SyntaxTreeListener {
+
+	private static final class Entry {
+		public final PEGParser.SyntaxNode item;
+		/**
+		 * the index of item in the syntax tree
+		 */
+		public int index;
+		/**
+		 * the rule the item defines, or null if it doesn't define one
+		 */
+		public final String definedName;
+		/**
+		 * the token of definedName, relative to the start of the item, or -1
+		 */
+		public final int definitionToken;
+		/**
+		 * the other rules the item refers to, sorted, each once
+		 */
+		public final String[] referencedNames;
+		/**
+		 * the tokens of each of referencedNames, relative to the start of the
+		 * item, in order
+		 */
+		public final int[][] referenceTokens;
+		/**
+		 * the template parameters and result variables of the rule, sorted,
+		 * each once
+		 */
+		public final String[] variableNames;
+		/**
+		 * the tokens of each of variableNames, relative to the start of the
+		 * item, in order; code identifiers with the same name count too
+		 */
+		public final int[][] variableTokens;
+		/**
+		 * the tokens of all the rule and variable names in the item, relative
+		 * to the start of the item, in order
+		 */
+		public final int[] occurrenceTokens;
+		/**
+		 * what each of occurrenceTokens is a name of: {@link #DEFINED_RULE}, an
+		 * index into referencedNames, or an index into variableNames converted
+		 * by {@link #toVariableSymbol}
+		 */
+		public final int[] occurrenceSymbols;
+		/**
+		 * true once the entry is taken out of the table
+		 */
+		public boolean removed = false;
+
+		public Entry(PEGParser.SyntaxNode item, int index, String definedName, int definitionToken,
+				NameTokenList references, NameTokenList variables) {
+			this.item = item;
+			this.index = index;
+			this.definedName = definedName;
+			this.definitionToken = definitionToken;
+			this.referencedNames = references.names;
+			this.referenceTokens = references.tokens;
+			this.variableNames = variables.names;
+			this.variableTokens = variables.tokens;
+			int occurrenceCount = (definitionToken < 0 ? 0 : 1) + references.getTokenCount()
+					+ variables.getTokenCount();
+			if (occurrenceCount == 0) {
+				occurrenceTokens = NO_TOKENS;
+				occurrenceSymbols = NO_TOKENS;
+				return;
+			}
+			// each occurrence is its token in the high half and its symbol in
+			// the low half, so sorting them sorts by token
+			long[] occurrences = new long[occurrenceCount];
+			occurrenceCount = 0;
+			if (definitionToken >= 0)
+				occurrences[occurrenceCount++] = (long) definitionToken << 32 | DEFINED_RULE & 0xFFFFFFFFL;
+			for (int i = 0; i < referencedNames.length; i++)
+				for (int token : referenceTokens[i])
+					occurrences[occurrenceCount++] = (long) token << 32 | i;
+			for (int i = 0; i < variableNames.length; i++)
+				for (int token : variableTokens[i])
+					occurrences[occurrenceCount++] = (long) token << 32 | toVariableSymbol(i) & 0xFFFFFFFFL;
+			Arrays.sort(occurrences);
+			occurrenceTokens = new int[occurrenceCount];
+			occurrenceSymbols = new int[occurrenceCount];
+			for (int i = 0; i < occurrenceCount; i++) {
+				occurrenceTokens[i] = (int) (occurrences[i] >> 32);
+				occurrenceSymbols[i] = (int) occurrences[i];
+			}
+		}
+	}
+
+	/**
+	 * name tokens grouped by name: {@link #add} them, then {@link #group} them
+	 */
+	private static final class NameTokenList {
+		private int size = 0;
+		private int[] addedTokens = NO_TOKENS;
+		private String[] addedNames = NO_NAMES;
+		/**
+		 * the names, sorted, each once
+		 */
+		public String[] names = NO_NAMES;
+		/**
+		 * the tokens of each of names, in order
+		 */
+		public int[][] tokens = NO_TOKEN_LISTS;
+
+		public void add(int token, String name) {
+			if (size == addedTokens.length) {
+				addedTokens = Arrays.copyOf(addedTokens, Math.max(8, size * 2));
+				addedNames = Arrays.copyOf(addedNames, addedTokens.length);
+			}
+			addedTokens[size] = token;
+			addedNames[size++] = name;
+		}
+
+		public int getTokenCount() {
+			return size;
+		}
+
+		/**
+		 * @return the first of the first count names added that's the same as
+		 *         the text at offset in document, or null if none are
+		 */
+		public String find(IDocument document, int offset, int length, int count) throws BadLocationException {
+			String text = null;
+			for (int i = 0; i < count; i++) {
+				if (addedNames[i].length() != length)
+					continue;
+				if (text == null)
+					text = document.get(offset, length);
+				if (addedNames[i].equals(text))
+					return addedNames[i];
+			}
+			return null;
+		}
+
+		public void group() {
+			if (size == 0)
+				return;
+			Integer[] order = new Integer[size];
+			for (int i = 0; i < size; i++)
+				order[i] = i;
+			Arrays.sort(order, new Comparator<Integer>() {
+
+				@Override
+				public int compare(Integer a, Integer b) {
+					int result = addedNames[a].compareTo(addedNames[b]);
+					if (result == 0)
+						result = addedTokens[a] < addedTokens[b] ? -1 : addedTokens[a] > addedTokens[b] ? 1 : 0;
+					return result;
+				}
+			});
+			int nameCount = 0;
+			for (int i = 0; i < size; i++)
+				if (i == 0 || !addedNames[order[i]].equals(addedNames[order[i - 1]]))
+					nameCount++;
+			names = new String[nameCount];
+			tokens = new int[nameCount][];
+			for (int i = 0, nameIndex = 0; i < size; nameIndex++) {
+				int end = i + 1;
+				while (end < size && addedNames[order[end]].equals(addedNames[order[i]]))
+					end++;
+				names[nameIndex] = addedNames[order[i]];
+				tokens[nameIndex] = new int[end - i];
+				for (int j = i; j < end; j++)
+					tokens[nameIndex][j - i] = addedTokens[order[j]];
+				i = end;
+			}
+		}
+	}
+
+	/**
+	 * the entries that define a rule and that refer to it. Taking an entry
+	 * out of the table just marks it removed, and once all the changed entries
+	 * are marked, the lists that are at least half removed are compacted, so
+	 * changing the table doesn't need to search lists or keep a hash set for
+	 * every rule.
+	 */
+	private static final class Symbol {
+		public final List<Entry> definitions = new ArrayList<Entry>(1);
+		/**
+		 * the entries that refer to the rule at least once
+		 */
+		public final List<Entry> references = new ArrayList<Entry>(2);
+		/**
+		 * the number of places in the lists that hold removed entries; a rule
+		 * that refers to itself is in both lists
+		 */
+		public int removedCount = 0;
+
+		private static void compact(List<Entry> entries) {
+			int size = 0;
+			for (int i = 0; i < entries.size(); i++)
+				if (!entries.get(i).removed)
+					entries.set(size++, entries.get(i));
+			entries.subList(size, entries.size()).clear();
+		}
+
+		/**
+		 * compact the lists if at least half of their entries are removed
+		 * 
+		 * @return false if all the entries are removed
+		 */
+		public boolean compact() {
+			if (removedCount * 2 >= definitions.size() + references.size()) {
+				compact(definitions);
+				compact(references);
+				removedCount = 0;
+			}
+			return !definitions.isEmpty() || !references.isEmpty();
+		}
+	}
+
+	private static final int[] NO_TOKENS = new int[0];
+	private static final int[][] NO_TOKEN_LISTS = new int[0][];
+	private static final String[] NO_NAMES = new String[0];
+	/**
+	 * the symbol of the rule an item defines
+	 */
+	private static final int DEFINED_RULE = -1;
+	private static final Comparator<Entry> ENTRY_ORDER = new Comparator<Entry>() {
+
+		@Override
+		public int compare(Entry a, Entry b) {
+			return a.index < b.index ? -1 : a.index > b.index ? 1 : 0;
+		}
+	};
+
+	private final PEGParser parser;
+	/**
+	 * an entry for each item of tree, in order
+	 */
+	private final List<Entry> entries = new ArrayList<Entry>();
+	private final Map<String, Symbol> symbols = new HashMap<String, Symbol>();
+	private PEGParser.SyntaxTree tree;
+	private PEGParser.TokenBuffer tokens;
+
+	public PEGSymbolTable(PEGParser parser) {
+		this.parser = parser;
+		parser.addSyntaxTreeListener(this);
+		PEGParser.SyntaxTree tree = parser.getSyntaxTree();
+		if (tree != null)
+			syntaxTreeChanged(tree, parser.getSyntaxTreeTokens());
+	}
+
+	/**
+	 * @return the tokens the token indexes and offsets are from, or null if
+	 *         the grammar hasn't been parsed
+	 */
+	public PEGParser.TokenBuffer getTokens() {
+		return tokens;
+	}
+
+	/**
+	 * convert between an index into {@link Entry#variableNames} and the
+	 * symbol for it
+	 */
+	private static int toVariableSymbol(int index) {
+		return DEFINED_RULE - 1 - index;
+	}
+
+	/**
+	 * @param document
+	 *            the document the tokens are from, for the text of the code
+	 *            identifiers, or null to leave them out
+	 */
+	private static Entry createEntry(PEGParser.SyntaxTree tree, PEGParser.TokenBuffer tokens, IDocument document,
+			int index) {
+		PEGParser.SyntaxNode item = tree.getItem(index);
+		NameTokenList references = new NameTokenList();
+		NameTokenList variables = new NameTokenList();
+		if (item.kind != PEGParser.SyntaxNode.Kind.Rule)
+			return new Entry(item, index, null, -1, references, variables);
+		int itemStart = tree.getItemStart(index);
+		int definitionToken = item.findStyledToken(PEGSyntaxHighlightingConstants.RULE_NAME_ID);
+		// nodes can be nested arbitrarily deep, so don't recurse
+		PEGParser.SyntaxNode[] stack = new PEGParser.SyntaxNode[16];
+		int stackSize = 0;
+		for (int i = 0; i < item.getChildCount(); i++) {
+			if (stackSize == stack.length)
+				stack = Arrays.copyOf(stack, stackSize * 2);
+			stack[stackSize++] = item.getChild(i);
+		}
+		while (stackSize > 0) {
+			PEGParser.SyntaxNode node = stack[--stackSize];
+			for (int i = 0; i < node.getStyledTokenCount(); i++) {
+				int token = node.getStyledToken(i);
+				switch (node.getTokenStyle(i)) {
+				case PEGSyntaxHighlightingConstants.RULE_NAME_ID:
+					references.add(token, tokens.getValue(itemStart + token));
+					break;
+				case PEGSyntaxHighlightingConstants.TEMPLATE_VARIABLE_ID:
+				case PEGSyntaxHighlightingConstants.RESULT_VARIABLE_ID:
+					variables.add(token, tokens.getValue(itemStart + token));
+					break;
+				default:
+					break;
+				}
+			}
+			if (stackSize + node.getChildCount() > stack.length)
+				stack = Arrays.copyOf(stack, Math.max(stack.length * 2, stackSize + node.getChildCount()));
+			for (int i = 0; i < node.getChildCount(); i++)
+				stack[stackSize++] = node.getChild(i);
+		}
+		if (variables.getTokenCount() > 0 && document != null) {
+			// the code snippets use the variables by name; code identifiers
+			// don't keep their text, so it comes from the document
+			int itemEnd = tree.getItemStart(index + 1);
+			int variableTokenCount = variables.getTokenCount();
+			try {
+				for (int token = itemStart; token < itemEnd; token++) {
+					if (tokens.getType(token) != PEGParser.TokenType.CodeSnippetIdentifier)
+						continue;
+					String name = variables.find(document, tokens.getOffset(token), tokens.getLength(token),
+							variableTokenCount);
+					if (name != null)
+						variables.add(token - itemStart, name);
+				}
+			} catch (BadLocationException e) {
+				// the tokens don't match the document; they will after the next
+				// parse
+			}
+		}
+		references.group();
+		variables.group();
+		return new Entry(item, index, definitionToken < 0 ? null : tokens.getValue(itemStart + definitionToken),
+				definitionToken, references, variables);
+	}
+
+	private Symbol getSymbol(String name) {
+		Symbol symbol = symbols.get(name);
+		if (symbol == null) {
+			symbol = new Symbol();
+			symbols.put(name, symbol);
+		}
+		return symbol;
+	}
+
+	private void addSymbols(Entry entry) {
+		if (entry.definedName != null)
+			getSymbol(entry.definedName).definitions.add(entry);
+		for (String name : entry.referencedNames)
+			getSymbol(name).references.add(entry);
+	}
+
+	private void removeSymbols(Entry entry, Set<String> changedNames) {
+		entry.removed = true;
+		if (entry.definedName != null)
+			removeSymbol(entry.definedName, changedNames);
+		for (String name : entry.referencedNames)
+			removeSymbol(name, changedNames);
+	}
+
+	private void removeSymbol(String name, Set<String> changedNames) {
+		symbols.get(name).removedCount++;
+		changedNames.add(name);
+	}
+
+	@Override
+	public void syntaxTreeChanged(PEGParser.SyntaxTree tree, PEGParser.TokenBuffer tokens) {
+		int oldCount = entries.size();
+		int newCount = tree.getItemCount();
+		int first = 0;
+		while (first < oldCount && first < newCount && entries.get(first).item == tree.getItem(first))
+			first++;
+		int oldEnd = oldCount;
+		int newEnd = newCount;
+		while (oldEnd > first && newEnd > first && entries.get(oldEnd - 1).item == tree.getItem(newEnd - 1)) {
+			oldEnd--;
+			newEnd--;
+		}
+		this.tree = tree;
+		this.tokens = tokens;
+		IDocument document = parser.getDocument();
+		List<Entry> oldEntries = entries.subList(first, oldEnd);
+		Set<String> changedNames = new HashSet<String>();
+		for (Entry entry : oldEntries)
+			removeSymbols(entry, changedNames);
+		for (String name : changedNames)
+			if (!symbols.get(name).compact())
+				symbols.remove(name);
+		oldEntries.clear();
+		List<Entry> newEntries = new ArrayList<Entry>(newEnd - first);
+		for (int i = first; i < newEnd; i++) {
+			Entry entry = createEntry(tree, tokens, document, i);
+			newEntries.add(entry);
+			addSymbols(entry);
+		}
+		entries.addAll(first, newEntries);
+		if (newEnd != oldEnd)
+			for (int i = newEnd; i < entries.size(); i++)
+				entries.get(i).index = i;
+	}
+
+	/**
+	 * @return the index of the rule name token at offset, whether it's where
+	 *         the rule is defined or a reference to it, or -1 if there isn't
+	 *         one
+	 */
+	public int findRuleNameToken(int offset) {
+		int[] entryIndex = new int[1];
+		int occurrence = findOccurrence(offset, entryIndex);
+		if (occurrence < 0 || entries.get(entryIndex[0]).occurrenceSymbols[occurrence] < DEFINED_RULE)
+			return -1;
+		return tree.getItemStart(entryIndex[0]) + entries.get(entryIndex[0]).occurrenceTokens[occurrence];
+	}
+
+	/**
+	 * @param entryIndex
+	 *            set to the index of the entry the occurrence is in
+	 * @return the index in the entry's occurrences of the name at offset, or a
+	 *         negative number if there isn't one
+	 */
+	private int findOccurrence(int offset, int[] entryIndex) {
+		if (tree == null || offset < 0)
+			return -1;
+		int token = tokens.findTokenEndingAfter(offset);
+		if (tokens.getOffset(token) > offset || tokens.getEnd(token) <= offset)
+			return -1;
+		int index = tree.lowerBound(0, tree.getItemCount(), token + 1) - 1;
+		if (index < 0)
+			return -1;
+		entryIndex[0] = index;
+		return Arrays.binarySearch(entries.get(index).occurrenceTokens, token - tree.getItemStart(index));
+	}
+
+	private IRegion getRegion(Entry entry, int relativeToken) {
+		int token = tree.getItemStart(entry.index) + relativeToken;
+		return new Region(tokens.getOffset(token), tokens.getLength(token));
+	}
+
+	/**
+	 * @return the entries that aren't removed, in order
+	 */
+	private static List<Entry> sort(List<Entry> entries) {
+		List<Entry> sorted = new ArrayList<Entry>(entries.size());
+		for (Entry entry : entries)
+			if (!entry.removed)
+				sorted.add(entry);
+		Collections.sort(sorted, ENTRY_ORDER);
+		return sorted;
+	}
+
+	/**
+	 * @return the regions of the names of the rules called name, in order
+	 */
+	public List<IRegion> getDefinitions(String name) {
+		Symbol symbol = symbols.get(name);
+		if (symbol == null)
+			return Collections.emptyList();
+		List<IRegion> definitions = new ArrayList<IRegion>(symbol.definitions.size());
+		for (Entry entry : sort(symbol.definitions))
+			definitions.add(getRegion(entry, entry.definitionToken));
+		return definitions;
+	}
+
+	private void addReferences(Entry entry, String name, List<IRegion> regions) {
+		int nameIndex = Arrays.binarySearch(entry.referencedNames, name);
+		for (int token : entry.referenceTokens[nameIndex])
+			regions.add(getRegion(entry, token));
+	}
+
+	/**
+	 * @return the regions of the references to the rule called name, in order
+	 */
+	public List<IRegion> getReferences(String name) {
+		Symbol symbol = symbols.get(name);
+		if (symbol == null)
+			return Collections.emptyList();
+		List<IRegion> references = new ArrayList<IRegion>();
+		for (Entry entry : sort(symbol.references))
+			addReferences(entry, name, references);
+		return references;
+	}
+
+	/**
+	 * find the rule, template parameter or result variable whose name is at
+	 * offset or ends there. The occurrences of each rule and of each variable
+	 * are already listed, so this is a binary search and then a copy of the
+	 * occurrences.
+	 * 
+	 * @return the regions of all of the occurrences of its name, not in any
+	 *         particular order, or an empty list if there isn't one
+	 */
+	public List<IRegion> getOccurrences(int offset) {
+		int[] entryIndex = new int[1];
+		int occurrence = findOccurrence(offset, entryIndex);
+		if (occurrence < 0 && offset > 0)
+			occurrence = findOccurrence(offset - 1, entryIndex);
+		if (occurrence < 0)
+			return Collections.emptyList();
+		Entry entry = entries.get(entryIndex[0]);
+		int symbol = entry.occurrenceSymbols[occurrence];
+		List<IRegion> occurrences = new ArrayList<IRegion>();
+		if (symbol < DEFINED_RULE) {
+			for (int token : entry.variableTokens[toVariableSymbol(symbol)])
+				occurrences.add(getRegion(entry, token));
+			return occurrences;
+		}
+		String name = symbol == DEFINED_RULE ? entry.definedName : entry.referencedNames[symbol];
+		Symbol rule = symbols.get(name);
+		if (rule == null) {
+			// the table lost track of the rule; the name at offset is still
+			// an occurrence
+			if (symbol == DEFINED_RULE)
+				occurrences.add(getRegion(entry, entry.definitionToken));
+			else
+				addReferences(entry, name, occurrences);
+			return occurrences;
+		}
+		for (Entry definition : rule.definitions)
+			if (!definition.removed)
+				occurrences.add(getRegion(definition, definition.definitionToken));
+		for (Entry reference : rule.references)
+			if (!reference.removed)
+				addReferences(reference, name, occurrences);
+		return occurrences;
+	}
+}
@@ -5,6 +5,31 @@ import org.eclipse.swt.SWT;
 import org.eclipse.swt.graphics.RGB;
 
 public class PEGSyntaxHighlightingConstants {
+	public static final byte NO_STYLE_ID = 0;
+	public static final byte KEYWORD_ID = 1;
+	public static final byte IDENTIFIER_ID = 2;
+	public static final byte RULE_NAME_ID = 3;
+	public static final byte TYPE_NAME_ID = 4;
+	public static final byte RESULT_VARIABLE_ID = 5;
+	public static final byte TEMPLATE_VARIABLE_ID = 6;
+	public static final byte OPERATOR_ID = 7;
+	public static final byte LINE_COMMENT_ID = 8;
+	public static final byte BLOCK_COMMENT_ID = 9;
+	public static final byte STRING_ID = 10;
+	public static final byte CHARACTER_CLASS_ID = 11;
+	public static final byte CODE_ID = 12;
+	public static final byte SUBSTITUTION_ID = 13;
+	public static final byte CODE_LINE_COMMENT_ID = 14;
+	public static final byte CODE_BLOCK_COMMENT_ID = 15;
+	public static final byte CODE_KEYWORD_ID = 16;
+	public static final byte CODE_IDENTIFIER_ID = 17;
+	public static final byte CODE_STRING_ID = 18;
+	public static final byte CODE_CHAR_ID = 19;
+	public static final byte CODE_HEADER_NAME_ID = 20;
+	public static final byte CODE_NUMBER_ID = 21;
+	public static final byte CODE_PUNCTUATOR_ID = 22;
+	public static final byte CODE_UNKNOWN_ID = 23;
+	public static final int STYLE_ID_COUNT = 24;
 	public static final RGB KEYWORD = new RGB(127, 0, 85);
 	public static final int KEYWORD_STYLE = SWT.BOLD;
 	public final TextAttribute keywordTextAttribute;
@@ -74,6 +99,7 @@ public class PEGSyntaxHighlightingConstants {
 	public static final RGB CODE_UNKNOWN = new RGB(224, 0, 0);
 	public static final int CODE_UNKNOWN_STYLE = SWT.BOLD;
 	public final TextAttribute codeUnknownTextAttribute;
+	private final TextAttribute[] textAttributes = new TextAttribute[STYLE_ID_COUNT];
 
 	public PEGSyntaxHighlightingConstants(ColorManager colorManager) {
 		keywordTextAttribute = new TextAttribute(colorManager.getColor(KEYWORD), null, KEYWORD_STYLE);
@@ -107,5 +133,36 @@ public class PEGSyntaxHighlightingConstants {
 		codePunctuatorTextAttribute = new TextAttribute(colorManager.getColor(CODE_PUNCTUATOR), null,
 				CODE_PUNCTUATOR_STYLE);
 		codeUnknownTextAttribute = new TextAttribute(colorManager.getColor(CODE_UNKNOWN), null, CODE_UNKNOWN_STYLE);
+		textAttributes[KEYWORD_ID] = keywordTextAttribute;
+		textAttributes[IDENTIFIER_ID] = identifierTextAttribute;
+		textAttributes[RULE_NAME_ID] = ruleNameTextAttribute;
+		textAttributes[TYPE_NAME_ID] = typeNameTextAttribute;
+		textAttributes[RESULT_VARIABLE_ID] = resultVariableTextAttribute;
+		textAttributes[TEMPLATE_VARIABLE_ID] = templateVariableTextAttribute;
+		textAttributes[OPERATOR_ID] = operatorTextAttribute;
+		textAttributes[LINE_COMMENT_ID] = lineCommentTextAttribute;
+		textAttributes[BLOCK_COMMENT_ID] = blockCommentTextAttribute;
+		textAttributes[STRING_ID] = stringTextAttribute;
+		textAttributes[CHARACTER_CLASS_ID] = characterClassTextAttribute;
+		textAttributes[CODE_ID] = codeTextAttribute;
+		textAttributes[SUBSTITUTION_ID] = substitutionTextAttribute;
+		textAttributes[CODE_LINE_COMMENT_ID] = codeLineCommentTextAttribute;
+		textAttributes[CODE_BLOCK_COMMENT_ID] = codeBlockCommentTextAttribute;
+		textAttributes[CODE_KEYWORD_ID] = codeKeywordTextAttribute;
+		textAttributes[CODE_IDENTIFIER_ID] = codeIdentifierTextAttribute;
+		textAttributes[CODE_STRING_ID] = codeStringTextAttribute;
+		textAttributes[CODE_CHAR_ID] = codeCharTextAttribute;
+		textAttributes[CODE_HEADER_NAME_ID] = codeHeaderNameTextAttribute;
+		textAttributes[CODE_NUMBER_ID] = codeNumberTextAttribute;
+		textAttributes[CODE_PUNCTUATOR_ID] = codePunctuatorTextAttribute;
+		textAttributes[CODE_UNKNOWN_ID] = codeUnknownTextAttribute;
+	}
+
+	/**
+	 * @return the text attribute for styleId, or null for
+	 *         {@link #NO_STYLE_ID}
+	 */
+	public TextAttribute getTextAttribute(int styleId) {
+		return textAttributes[styleId];
 	}
 }